@@ -0,0 +1 @@
+app/src/main/java/com/example/x/webphone/HttpRequest.java
\ No newline at end of file
@@ -0,0 +1 @@
+app/src/main/java/com/example/x/webphone/ListingPage.java
\ No newline at end of file
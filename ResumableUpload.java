@@ -0,0 +1 @@
+app/src/main/java/com/example/x/webphone/ResumableUpload.java
\ No newline at end of file
@@ -29,6 +29,14 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Properties;
 import java.io.FileInputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
 
 
 public class Stuff
@@ -38,13 +46,72 @@ public class Stuff
     static final int SORT_PATH = 0;
     static final int SORT_SIZE = 1;
     static final int SORT_DATE = 2;
+// total size of everything under each entry
+    static final int SORT_TOTAL = 3;
     static int sortOrder = SORT_PATH;
     static String private_dir = "";
+// use the NIO server instead of 1 thread per connection
+    static boolean useNio = false;
+// how WebServer runs connections
+    static final int DISPATCH_POOL = 0;
+    static final int DISPATCH_VIRTUAL = 1;
+    static int dispatchMode = DISPATCH_VIRTUAL;
+// ms to wait for the next request on a kept alive connection
+    static int keepAliveTimeout = 15000;
+// ms a write to a client can stall before the NIO server drops it
+    static int writeTimeout = 30000;
+// requests on 1 connection before closing it
+    static int maxRequests = 100;
+// send files straight from the file to the socket
+    static boolean zeroCopy = true;
+// gzip text files & listings when the client takes it
+    static boolean compress = true;
+// keep gzipped copies of text files in cache_dir
+    static boolean precompress = false;
+// files smaller than this aren't compressed
+    static int compressMin = 1024;
+// files bigger than this are compressed on the fly
+    static long precompressMax = 0x1000000;
+// 1 to 9.  Lower takes less CPU.
+    static int compressLevel = 6;
+// threads deflating 1 file in a ZIP download.  1 turns it off.
+    static int archiveThreads = Runtime.getRuntime().availableProcessors();
+// bytes of rendered directory listings to keep
+    static long listingCacheSize = 0x400000;
+// entries on 1 page of a directory listing
+    static int pageSize = 1000;
+// sort numbers in names by value
+    static boolean naturalSort = true;
+// show the total size & files under each directory
+    static boolean dirSizes = false;
+// the tree the search index covers.  Empty turns it off.
+    static String searchRoot = "";
+// keep the search tree up to date as files change
+    static boolean watchFiles = false;
+// most directories watched.  The kernel has its own limit.
+    static int maxWatches = 8192;
+    static WatchService watchService;
+    static HashMap<WatchKey, String> watchKeys = new HashMap<WatchKey, String>();
+    static HashMap<String, WatchKey> watchedDirs = new HashMap<String, WatchKey>();
+// set the final length of uploads before writing them.  This is only a
+// size hint.  Most filesystems make a sparse file, so no space is reserved.
+    static boolean presize = false;
+// 0 = leave uploads to the OS, 1 = sync when done, 2 = sync every 16MB
+    static int syncUploads = 0;
+    static String cache_dir = System.getProperty("java.io.tmpdir") + "/webphone";
 
 
     public static void main(String[] args)
     {
         Stuff.initialize();
+        for(int i = 0; i < args.length; i++)
+        {
+            if(args[i].equals("-nio"))
+                useNio = true;
+            else
+            if(args[i].equals("-port") && i + 1 < args.length)
+                PORT = Integer.parseInt(args[++i]);
+        }
         WebServer webServer = new WebServer();
         webServer.run();
     }
@@ -55,8 +122,8 @@ public class Stuff
         try (FileInputStream input = new FileInputStream(settingsFile())) 
         {
             properties.load(input);
-            String order = properties.getProperty("sortOrder");
-            String descending = properties.getProperty("descending");
+            String order = properties.getProperty("sortOrder", "");
+            String descending = properties.getProperty("descending", "");
             
             if(!order.isEmpty())
             {
@@ -70,6 +137,37 @@ public class Stuff
                 else
                     sortDescending = true;
             }
+            useNio = properties.getProperty("nio", "0").equals("1");
+            dispatchMode = Integer.parseInt(properties.getProperty("dispatch",
+                String.valueOf(dispatchMode)));
+            zeroCopy = properties.getProperty("zeroCopy", "1").equals("1");
+            compress = properties.getProperty("compress", "1").equals("1");
+            precompress = properties.getProperty("precompress", "0").equals("1");
+            compressMin = Integer.parseInt(properties.getProperty("compressMin",
+                String.valueOf(compressMin)));
+            compressLevel = Integer.parseInt(properties.getProperty("compressLevel",
+                String.valueOf(compressLevel)));
+            archiveThreads = Integer.parseInt(properties.getProperty("archiveThreads",
+                String.valueOf(archiveThreads)));
+            keepAliveTimeout = Integer.parseInt(properties.getProperty("keepAliveTimeout",
+                String.valueOf(keepAliveTimeout)));
+            writeTimeout = Integer.parseInt(properties.getProperty("writeTimeout",
+                String.valueOf(writeTimeout)));
+            maxRequests = Integer.parseInt(properties.getProperty("maxRequests",
+                String.valueOf(maxRequests)));
+            pageSize = Integer.parseInt(properties.getProperty("pageSize",
+                String.valueOf(pageSize)));
+            naturalSort = properties.getProperty("naturalSort", "1").equals("1");
+            dirSizes = properties.getProperty("dirSizes", "0").equals("1");
+            searchRoot = properties.getProperty("searchRoot", searchRoot);
+            watchFiles = properties.getProperty("watchFiles", "0").equals("1");
+            maxWatches = Integer.parseInt(properties.getProperty("maxWatches",
+                String.valueOf(maxWatches)));
+            presize = properties.getProperty("presize", "0").equals("1");
+            syncUploads = Integer.parseInt(properties.getProperty("syncUploads",
+                String.valueOf(syncUploads)));
+            int logLevel = Logger.parseLevel(properties.getProperty("logLevel", ""));
+            if(logLevel >= 0) Logger.setLevel(logLevel);
         } catch (IOException e) {
             System.err.println("Error reading properties file: " + e.getMessage());
             e.printStackTrace();
@@ -77,9 +175,101 @@ public class Stuff
     }
 
 
+// everything goes through the Logger thread
     static void log(String x, String y)
     {
-        System.out.println(x + ":" + y);
+        Logger.info(x, "{}", y);
+    }
+
+// report changes in dir to TreeWatcher.  Returns false if it can't be watched.
+    static synchronized boolean watch(String dir)
+    {
+        try
+        {
+            if(watchService == null)
+            {
+                watchService = FileSystems.getDefault().newWatchService();
+                Thread thread = new Thread(new Runnable()
+                {
+                    public void run()
+                    {
+                        readWatchEvents();
+                    }
+                }, "WatchService");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            WatchKey key = Paths.get(dir).register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+            watchKeys.put(key, dir);
+            watchedDirs.put(dir, key);
+            return true;
+        } catch(Exception e)
+        {
+            Logger.debug("Stuff", "watch: {} {}", dir, e);
+            return false;
+        }
+    }
+
+    static synchronized void unwatch(String dir)
+    {
+        WatchKey key = watchedDirs.remove(dir);
+        if(key == null) return;
+        watchKeys.remove(key);
+        key.cancel();
+    }
+
+    static void readWatchEvents()
+    {
+        while(true)
+        {
+            WatchKey key;
+            try
+            {
+                key = watchService.take();
+            } catch(InterruptedException e)
+            {
+                return;
+            }
+
+            String dir;
+            synchronized(Stuff.class)
+            {
+                dir = watchKeys.get(key);
+            }
+            for(WatchEvent<?> event : key.pollEvents())
+            {
+                if(dir == null) continue;
+                WatchEvent.Kind<?> kind = event.kind();
+                if(kind == StandardWatchEventKinds.OVERFLOW)
+                {
+                    TreeWatcher.overflow(dir);
+                    continue;
+                }
+
+                String name = ((Path)event.context()).toString();
+                if(kind == StandardWatchEventKinds.ENTRY_CREATE)
+                    TreeWatcher.created(dir, name);
+                else
+                if(kind == StandardWatchEventKinds.ENTRY_DELETE)
+                    TreeWatcher.deleted(dir, name);
+                else
+                    TreeWatcher.modified(dir, name);
+            }
+
+// the directory is gone
+            if(!key.reset())
+            {
+                synchronized(Stuff.class)
+                {
+                    if(dir != null && watchedDirs.get(dir) == key)
+                        watchedDirs.remove(dir);
+                    watchKeys.remove(key);
+                }
+            }
+        }
     }
 
     static String settingsFile()
@@ -96,6 +286,26 @@ public class Stuff
 		
 		properties.setProperty("sortOrder", String.valueOf(sortOrder));
 		properties.setProperty("descending", String.valueOf(sortDescending ? 1 : 0));
+		properties.setProperty("nio", String.valueOf(useNio ? 1 : 0));
+		properties.setProperty("dispatch", String.valueOf(dispatchMode));
+		properties.setProperty("zeroCopy", String.valueOf(zeroCopy ? 1 : 0));
+		properties.setProperty("compress", String.valueOf(compress ? 1 : 0));
+		properties.setProperty("precompress", String.valueOf(precompress ? 1 : 0));
+		properties.setProperty("compressMin", String.valueOf(compressMin));
+		properties.setProperty("compressLevel", String.valueOf(compressLevel));
+		properties.setProperty("archiveThreads", String.valueOf(archiveThreads));
+		properties.setProperty("keepAliveTimeout", String.valueOf(keepAliveTimeout));
+		properties.setProperty("writeTimeout", String.valueOf(writeTimeout));
+		properties.setProperty("maxRequests", String.valueOf(maxRequests));
+		properties.setProperty("pageSize", String.valueOf(pageSize));
+		properties.setProperty("naturalSort", String.valueOf(naturalSort ? 1 : 0));
+		properties.setProperty("dirSizes", String.valueOf(dirSizes ? 1 : 0));
+		properties.setProperty("searchRoot", searchRoot);
+		properties.setProperty("watchFiles", String.valueOf(watchFiles ? 1 : 0));
+		properties.setProperty("maxWatches", String.valueOf(maxWatches));
+		properties.setProperty("presize", String.valueOf(presize ? 1 : 0));
+		properties.setProperty("syncUploads", String.valueOf(syncUploads));
+		properties.setProperty("logLevel", String.valueOf(Logger.level));
 
         try (FileOutputStream output = new FileOutputStream(settingsFile())) 
         {
@@ -0,0 +1,99 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+
+// Walks files & directories into a ZIP or TAR stream.  Each file is read
+// straight into the response, so nothing is staged on disk or kept in memory
+// except the ZIP central directory.  A selected directory is archived even
+// if it's a symbolic link, but every symbolic link to a directory found
+// inside it is skipped so loops don't go on forever.  Symbolic links to
+// files are followed & stored as copies of the file.
+
+class Archive
+{
+    interface Writer
+    {
+        void addDirectory(String name, long date) throws IOException;
+        void addFile(String name, long date, long size, InputStream in) throws IOException;
+        void finish() throws IOException;
+    }
+
+// returns null if the type isn't zip or tar
+    static Writer create(String type, OutputStream out, int level)
+    {
+        if(type.equals("zip"))
+            return new ZipStream(out, level, Stuff.archiveThreads);
+        if(type.equals("tar"))
+            return new TarStream(out);
+        return null;
+    }
+
+    static String getContentType(String type)
+    {
+        if(type.equals("zip")) return "application/zip";
+        return "application/x-tar";
+    }
+
+// add a file or a whole directory under name
+    static void add(Writer writer, DirEntry entry, String name) throws IOException
+    {
+        if(entry.isDir)
+        {
+            writer.addDirectory(name, entry.date);
+            DirEntry[] files = DirScanner.list(entry.path);
+            if(files == null) return;
+            for(int i = 0; i < files.length; i++)
+            {
+// loops
+                if(files[i].isDir && files[i].isLink) continue;
+                add(writer, files[i], name + "/" + files[i].name);
+            }
+        }
+        else
+        {
+            InputStream in;
+            try
+            {
+                in = new FileInputStream(entry.path);
+            } catch(IOException e)
+            {
+// unreadable or deleted since the directory was read
+                Stuff.log("Archive", "add: " + e);
+                return;
+            }
+
+            try
+            {
+                writer.addFile(name, entry.date, entry.size, in);
+            } finally
+            {
+                in.close();
+            }
+        }
+    }
+}
@@ -32,6 +32,14 @@ class DirEntry
     boolean isDir;
     long size;
     long date;
+    boolean isLink;
+// where a symbolic link points
+    String linkTarget;
+// the lower case name, made once for sorting instead of on every compare
+    String sortName;
+// bytes & files under a directory from DirSizes or -1
+    long totalSize = -1;
+    long totalFiles = -1;
 
 
     Vector<DirEntry> contents = new Vector<DirEntry>();
@@ -49,6 +57,7 @@ class DirEntry
         {
             name = path;
         }
+        sortName = name.toLowerCase();
         File file =  new File(path);
         isDir = file.isDirectory();
         size = file.length();
@@ -56,6 +65,27 @@ class DirEntry
     }
 
 
+// attributes already read by DirScanner
+    DirEntry(String path, String name, boolean isDir, long size, long date)
+    {
+        this.path = path;
+        this.name = name;
+        sortName = name.toLowerCase();
+        this.isDir = isDir;
+        this.size = size;
+        this.date = date;
+    }
+
+
+// the size for sorting by total.  A directory which wasn't walked counts as
+// its own size.
+    long getTotalSize()
+    {
+        if(totalSize >= 0) return totalSize;
+        return size;
+    }
+
+
     String getPathPlusFiles()
     {
         String string = new String(path);
@@ -0,0 +1,217 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Vector;
+
+
+// Read a directory into DirEntries.  Each entry takes 1 lstat for all its
+// attributes instead of the stats in DirEntry(path) & the canonical path
+// lookups in WebServer.isSymlink.  Symbolic links take 2 more calls to get
+// the target.  java.nio.file needs Android 8, so older phones use listFiles.
+
+class DirScanner
+{
+    static boolean haveNio = checkNio();
+
+// gets each entry as it's read
+    interface Visitor
+    {
+        void visit(DirEntry entry);
+    }
+
+// collects the entries for list
+    static class Collector implements Visitor
+    {
+        Vector<DirEntry> entries = new Vector<DirEntry>();
+
+        public void visit(DirEntry entry)
+        {
+            entries.add(entry);
+        }
+    }
+
+    static boolean checkNio()
+    {
+        try
+        {
+            Class.forName("java.nio.file.Files");
+            return true;
+        } catch(Throwable e)
+        {
+            return false;
+        }
+    }
+
+// returns null if the directory can't be read
+    static DirEntry[] list(String dir)
+    {
+        Collector collector = new Collector();
+        if(!scan(dir, collector)) return null;
+        return collector.entries.toArray(new DirEntry[collector.entries.size()]);
+    }
+
+// pass each entry to the visitor without keeping them.
+// Returns false if the directory can't be read.
+    static boolean scan(String dir, Visitor visitor)
+    {
+        if(haveNio)
+        {
+            try
+            {
+                scanNio(dir, visitor);
+                return true;
+            } catch(Exception e)
+            {
+                Stuff.log("DirScanner", "scan: " + e);
+                return false;
+            }
+        }
+        return scanFiles(dir, visitor);
+    }
+
+    static void scanNio(String dir, Visitor visitor) throws IOException
+    {
+        Path dirPath = Paths.get(dir);
+        DirectoryStream<Path> stream = Files.newDirectoryStream(dirPath);
+        try
+        {
+            for(Path path : stream)
+            {
+                DirEntry entry;
+                try
+                {
+                    entry = readEntry(dirPath, path);
+                } catch(IOException e)
+                {
+// deleted since the directory was read
+                    continue;
+                }
+                visitor.visit(entry);
+            }
+        } finally
+        {
+            stream.close();
+        }
+    }
+
+// 1 entry with the attributes of the link itself & its target
+    static DirEntry readEntry(Path dirPath, Path path) throws IOException
+    {
+        BasicFileAttributes attrs = Files.readAttributes(path,
+            BasicFileAttributes.class,
+            LinkOption.NOFOLLOW_LINKS);
+
+        DirEntry entry = new DirEntry(path.toString(),
+            path.getFileName().toString(),
+            attrs.isDirectory(),
+            attrs.size(),
+            attrs.lastModifiedTime().toMillis());
+
+        if(attrs.isSymbolicLink())
+        {
+            entry.isLink = true;
+            entry.linkTarget = dirPath.resolve(Files.readSymbolicLink(path))
+                .normalize()
+                .toString();
+// show what the link points to, like File does
+            try
+            {
+                attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                entry.isDir = attrs.isDirectory();
+                entry.size = attrs.size();
+                entry.date = attrs.lastModifiedTime().toMillis();
+            } catch(IOException e)
+            {
+// broken link
+                entry.isDir = false;
+                entry.size = 0;
+                entry.date = 0;
+            }
+        }
+        return entry;
+    }
+
+// read name in dir.  Returns null if it doesn't exist.
+    static DirEntry stat(String dir, String name)
+    {
+        if(haveNio)
+        {
+            try
+            {
+                Path dirPath = Paths.get(dir);
+                return readEntry(dirPath, dirPath.resolve(name));
+            } catch(Exception e)
+            {
+                return null;
+            }
+        }
+
+        File file = new File(dir, name);
+        if(!file.exists() && !WebServer.isSymlink(file.getAbsolutePath())) return null;
+        DirEntry entry = new DirEntry(file.getAbsolutePath());
+        if(WebServer.isSymlink(entry.path))
+        {
+            entry.isLink = true;
+            try
+            {
+                entry.linkTarget = file.getCanonicalPath();
+            } catch(IOException e)
+            {
+                entry.linkTarget = "";
+            }
+        }
+        return entry;
+    }
+
+    static boolean scanFiles(String dir, Visitor visitor)
+    {
+        File[] files = new File(dir).listFiles();
+        if(files == null) return false;
+
+        for(int i = 0; i < files.length; i++)
+        {
+            DirEntry entry = new DirEntry(files[i].getAbsolutePath());
+            if(WebServer.isSymlink(entry.path))
+            {
+                entry.isLink = true;
+                try
+                {
+                    entry.linkTarget = files[i].getCanonicalPath();
+                } catch(IOException e)
+                {
+                    entry.linkTarget = "";
+                }
+            }
+            visitor.visit(entry);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadFactory;
+
+
+// Totals the bytes & files under each directory, like du.  Each directory
+// keeps the sum of its own files & the list of its subdirectories, keyed by
+// its date.  Adding, removing or renaming an entry changes the date, so
+// only those directories are read again.  The rest of the tree costs 1 stat
+// per directory.  A file growing in place doesn't change its directory's
+// date, so its new size shows up when the directory changes next.
+//
+// Subdirectories are walked in parallel with fork/join, which needs
+// Android 5.  Older phones walk on 1 thread.  Symbolic links aren't counted
+// so nothing is counted twice & loops don't go on forever.  Pseudo
+// filesystems like /proc count as empty.
+//
+// Listings show the totals from the last walk & start a new walk in the
+// background, so a big tree never holds up a page.
+
+class DirSizes
+{
+    static class Node
+    {
+        long date;
+// files directly in the directory
+        long bytes;
+        long files;
+        String[] dirs;
+// everything under the directory from the last walk
+        volatile long totalBytes;
+        volatile long totalFiles;
+    }
+
+    static ConcurrentHashMap<String, Node> cache = new ConcurrentHashMap<String, Node>();
+    static boolean haveForkJoin = checkForkJoin();
+    static ForkJoinPool pool;
+// runs the background walks 1 at a time
+    static ExecutorService refresher;
+// directories waiting for a background walk
+    static Set<String> refreshing = 
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+// kernel & device files which aren't storage
+    static final HashSet<String> SKIP = new HashSet<String>(Arrays.asList(
+        "/proc", "/sys", "/dev"));
+
+    static boolean checkForkJoin()
+    {
+        try
+        {
+            Class.forName("java.util.concurrent.ForkJoinPool");
+            return true;
+        } catch(Throwable e)
+        {
+            return false;
+        }
+    }
+
+// the walk mostly waits for the storage, so more threads than cores helps
+    static synchronized ForkJoinPool getPool()
+    {
+        if(pool == null)
+            pool = new ForkJoinPool(Math.max(4, 
+                Runtime.getRuntime().availableProcessors()));
+        return pool;
+    }
+
+// bring the totals of dir up to date.  Returns null if it's gone.
+    static Node get(String dir)
+    {
+        if(haveForkJoin) return getPool().invoke(new Walk(dir));
+        return update(dir);
+    }
+
+// totals from the last walk without checking anything
+    static Node getCached(String dir)
+    {
+        return cache.get(dir);
+    }
+
+// bring the totals of dir up to date on a background thread
+    static void refresh(final String dir)
+    {
+        if(!refreshing.add(dir)) return;
+        synchronized(DirSizes.class)
+        {
+            if(refresher == null)
+            {
+                refresher = Executors.newSingleThreadExecutor(new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, "DirSizes");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+            }
+        }
+        refresher.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    get(dir);
+                } catch(Throwable e)
+                {
+                    Stuff.log("DirSizes", "refresh: " + e);
+                } finally
+                {
+                    refreshing.remove(dir);
+                }
+            }
+        });
+    }
+
+// read the directory again if its date changed
+    static Node read(String dir)
+    {
+        File file = new File(dir);
+        long date = file.lastModified();
+        Node node = cache.get(dir);
+        if(node != null && node.date == date && date != 0) return node;
+
+        Node newNode = new Node();
+        newNode.date = date;
+        if(SKIP.contains(dir))
+        {
+            newNode.dirs = new String[0];
+            cache.put(dir, newNode);
+            return newNode;
+        }
+        DirEntry[] entries = DirScanner.list(dir);
+        if(entries == null)
+        {
+            forget(dir);
+            return null;
+        }
+
+        Vector<String> dirs = new Vector<String>();
+        for(int i = 0; i < entries.length; i++)
+        {
+            if(entries[i].isLink) continue;
+            if(entries[i].isDir)
+                dirs.add(entries[i].path);
+            else
+            {
+                newNode.bytes += entries[i].size;
+                newNode.files++;
+            }
+        }
+        newNode.dirs = dirs.toArray(new String[dirs.size()]);
+
+// drop what was under subdirectories which went away
+        if(node != null)
+        {
+            for(int i = 0; i < node.dirs.length; i++)
+                if(!dirs.contains(node.dirs[i])) forget(node.dirs[i]);
+        }
+        cache.put(dir, newNode);
+        return newNode;
+    }
+
+// remove a directory & everything under it
+    static void forget(String dir)
+    {
+        cache.remove(dir);
+        String prefix = dir + "/";
+        Iterator<String> i = cache.keySet().iterator();
+        while(i.hasNext())
+            if(i.next().startsWith(prefix)) i.remove();
+    }
+
+// the walk on 1 thread
+    static Node update(String dir)
+    {
+        Node node = read(dir);
+        if(node == null) return null;
+        long bytes = node.bytes;
+        long files = node.files;
+        for(int i = 0; i < node.dirs.length; i++)
+        {
+            Node child = update(node.dirs[i]);
+            if(child == null) continue;
+            bytes += child.totalBytes;
+            files += child.totalFiles;
+        }
+        node.totalBytes = bytes;
+        node.totalFiles = files;
+        return node;
+    }
+
+// the walk with each subdirectory forked
+    static class Walk extends RecursiveTask<Node>
+    {
+        private static final long serialVersionUID = 1L;
+        String dir;
+
+        Walk(String dir)
+        {
+            this.dir = dir;
+        }
+
+        protected Node compute()
+        {
+            Node node = read(dir);
+            if(node == null) return null;
+            long bytes = node.bytes;
+            long files = node.files;
+            Vector<Walk> walks = new Vector<Walk>();
+            for(int i = 0; i < node.dirs.length; i++)
+                walks.add(new Walk(node.dirs[i]));
+            invokeAll(walks);
+            for(int i = 0; i < walks.size(); i++)
+            {
+                Node child = walks.get(i).join();
+                if(child == null) continue;
+                bytes += child.totalBytes;
+                files += child.totalFiles;
+            }
+            node.totalBytes = bytes;
+            node.totalFiles = files;
+            return node;
+        }
+    }
+
+// fills in the totals of each entry from the last walk
+    static class Filler implements DirScanner.Visitor
+    {
+        DirScanner.Visitor next;
+
+        Filler(DirScanner.Visitor next)
+        {
+            this.next = next;
+        }
+
+        public void visit(DirEntry entry)
+        {
+            if(!entry.isDir)
+            {
+                entry.totalSize = entry.size;
+                entry.totalFiles = 1;
+            }
+            else
+            if(!entry.isLink)
+            {
+                Node node = cache.get(entry.path);
+                if(node != null)
+                {
+                    entry.totalSize = node.totalBytes;
+                    entry.totalFiles = node.totalFiles;
+                }
+            }
+            next.visit(entry);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+
+// Reads a whole directory tree into DirEntries, sorted by name in each
+// directory.  Symbolic links to directories are kept but not followed, so
+// loops don't go on forever.
+
+class DirTree
+{
+    static final Comparator<DirEntry> BY_NAME = new Comparator<DirEntry>()
+    {
+        public int compare(DirEntry a, DirEntry b)
+        {
+            return a.name.compareTo(b.name);
+        }
+    };
+
+// returns the top of the tree
+    static DirEntry load(String top)
+    {
+        DirEntry dir = new DirEntry(top);
+        dir.isDir = true;
+        load(dir);
+        return dir;
+    }
+
+// add everything under parent to its contents
+    static void load(DirEntry parent)
+    {
+        DirEntry[] files = DirScanner.list(parent.path);
+        if(files == null) return;
+        Arrays.sort(files, BY_NAME);
+        for(int i = 0; i < files.length; i++)
+        {
+            DirEntry entry = files[i];
+            entry.parent = parent;
+            parent.contents.add(entry);
+            if(entry.isDir && !entry.isLink) load(entry);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+// The connection's input.  Reads request headers straight out of the
+// BufferedInputStream buffer, a line at a time, instead of calling read
+// for every byte.  The body stays in the buffer for the handlers.
+
+class HttpInput extends BufferedInputStream
+{
+    HttpInput(InputStream in)
+    {
+        super(in);
+    }
+
+// read up to the blank line after the headers & parse them.
+// Returns 1 of the HttpRequest results.
+    int readRequest(HttpRequest request) throws IOException
+    {
+        request.reset();
+        int lineStart = 0;
+        while(true)
+        {
+            if(pos >= count)
+            {
+// refill the buffer & put back the byte it returns
+                if(super.read() < 0)
+                    return request.size == 0 ? HttpRequest.EOF : HttpRequest.BAD;
+                pos--;
+            }
+
+            int end = pos;
+            byte[] buffer = buf;
+            int limit = count;
+            while(end < limit && buffer[end] != '\n') end++;
+            boolean gotLine = end < limit;
+            if(gotLine) end++;
+            if(!request.append(buffer, pos, end - pos)) return HttpRequest.TOO_BIG;
+            pos = end;
+
+            if(gotLine)
+            {
+                int length = request.size - lineStart;
+                if(length == 1 || (length == 2 && request.data[lineStart] == '\r'))
+                {
+// blank lines left over from the last request
+                    if(lineStart == 0)
+                    {
+                        request.size = 0;
+                        continue;
+                    }
+                    return request.parse();
+                }
+                lineStart = request.size;
+            }
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.nio.charset.StandardCharsets;
+
+
+// The request line & headers of 1 request.  HttpInput copies the raw
+// header into data & parse finds the fields in place.  The headers the
+// server uses are made into Strings.  The rest stay as offsets until a
+// handler asks for them with get.  1 of these is reused for every request
+// on a connection.
+
+class HttpRequest
+{
+// biggest header we'll take
+    static final int MAX_HEADER = 65536;
+    static final int MAX_HEADERS = 100;
+
+// results of HttpInput.readRequest
+    static final int OK = 0;
+// the connection closed before a request
+    static final int EOF = 1;
+    static final int TOO_BIG = 2;
+    static final int BAD = 3;
+
+    byte[] data = new byte[1024];
+    int size = 0;
+// name start, name end, value start, value end of each header
+    int[] fields = new int[4 * 16];
+    int headerCount = 0;
+
+    String method;
+// the path with the query
+    String target;
+    String path;
+// after the ?.  null if there isn't one
+    String query;
+    boolean http11;
+
+// the headers the server always looks at.  null if not sent.
+    String host;
+    String range;
+    String acceptEncoding;
+    String ifNoneMatch;
+    String connection;
+// -1 if not sent
+    long contentLength;
+
+    void reset()
+    {
+        size = 0;
+        headerCount = 0;
+        method = null;
+        target = null;
+        path = null;
+        query = null;
+        http11 = false;
+        host = null;
+        range = null;
+        acceptEncoding = null;
+        ifNoneMatch = null;
+        connection = null;
+        contentLength = -1;
+    }
+
+// returns false if the header got too big
+    boolean append(byte[] buffer, int offset, int length)
+    {
+        if(size + length > data.length)
+        {
+            if(size + length > MAX_HEADER) return false;
+            int newSize = data.length;
+            while(newSize < size + length) newSize *= 2;
+            byte[] data2 = new byte[Math.min(newSize, MAX_HEADER)];
+            System.arraycopy(data, 0, data2, 0, size);
+            data = data2;
+        }
+        System.arraycopy(buffer, offset, data, size, length);
+        size += length;
+        return true;
+    }
+
+    int indexOf(byte c, int start, int end)
+    {
+        for(int i = start; i < end; i++)
+            if(data[i] == c) return i;
+        return -1;
+    }
+
+// end of the text on the line starting at start, before any \r\n
+    int lineEnd(int start)
+    {
+        int end = indexOf((byte)'\n', start, size);
+        if(end < 0) end = size;
+        if(end > start && data[end - 1] == '\r') end--;
+        return end;
+    }
+
+// next line after the line starting at start
+    int nextLine(int start)
+    {
+        int end = indexOf((byte)'\n', start, size);
+        if(end < 0) return size;
+        return end + 1;
+    }
+
+// compare bytes to a lower case name ignoring case
+    boolean matches(int start, int end, String name)
+    {
+        if(end - start != name.length()) return false;
+        for(int i = start; i < end; i++)
+        {
+            int c = data[i];
+            if(c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            if(c != name.charAt(i - start)) return false;
+        }
+        return true;
+    }
+
+    String string(int start, int end)
+    {
+        return new String(data, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+// the common methods don't need new Strings
+    String getMethod(int start, int end)
+    {
+        if(end - start == 3 && data[start] == 'G' && data[start + 1] == 'E' && data[start + 2] == 'T')
+            return "GET";
+        if(end - start == 4 && data[start] == 'P' && data[start + 1] == 'O' && 
+            data[start + 2] == 'S' && data[start + 3] == 'T')
+            return "POST";
+        if(end - start == 3 && data[start] == 'P' && data[start + 1] == 'U' && data[start + 2] == 'T')
+            return "PUT";
+        if(end - start == 4 && data[start] == 'H' && data[start + 1] == 'E' && 
+            data[start + 2] == 'A' && data[start + 3] == 'D')
+            return "HEAD";
+        return string(start, end);
+    }
+
+// find the fields in data
+    int parse()
+    {
+// request line
+        int end = lineEnd(0);
+        int methodEnd = indexOf((byte)' ', 0, end);
+        if(methodEnd <= 0) return BAD;
+        int targetStart = methodEnd;
+        while(targetStart < end && data[targetStart] == ' ') targetStart++;
+        int targetEnd = indexOf((byte)' ', targetStart, end);
+        if(targetEnd < 0) targetEnd = end;
+        if(targetEnd == targetStart) return BAD;
+        int versionStart = targetEnd;
+        while(versionStart < end && data[versionStart] == ' ') versionStart++;
+
+        method = getMethod(0, methodEnd);
+        target = string(targetStart, targetEnd);
+        int question = indexOf((byte)'?', targetStart, targetEnd);
+        if(question < 0)
+            path = target;
+        else
+        {
+            path = string(targetStart, question);
+            query = string(question + 1, targetEnd);
+        }
+        http11 = end - versionStart == 8 &&
+            data[versionStart + 5] == '1' && 
+            data[versionStart + 6] == '.' && 
+            data[versionStart + 7] == '1';
+
+// headers
+        int line = nextLine(0);
+        while(line < size)
+        {
+            end = lineEnd(line);
+            if(end == line) break;
+            int colon = indexOf((byte)':', line, end);
+            if(colon > line)
+            {
+                int valueStart = colon + 1;
+                while(valueStart < end && (data[valueStart] == ' ' || data[valueStart] == '\t'))
+                    valueStart++;
+                int valueEnd = end;
+                while(valueEnd > valueStart && (data[valueEnd - 1] == ' ' || data[valueEnd - 1] == '\t'))
+                    valueEnd--;
+                int nameEnd = colon;
+                while(nameEnd > line && data[nameEnd - 1] == ' ') nameEnd--;
+
+                if(headerCount >= MAX_HEADERS) return TOO_BIG;
+                if(fields.length < (headerCount + 1) * 4)
+                {
+                    int[] fields2 = new int[fields.length * 2];
+                    System.arraycopy(fields, 0, fields2, 0, fields.length);
+                    fields = fields2;
+                }
+                fields[headerCount * 4] = line;
+                fields[headerCount * 4 + 1] = nameEnd;
+                fields[headerCount * 4 + 2] = valueStart;
+                fields[headerCount * 4 + 3] = valueEnd;
+                headerCount++;
+
+                if(matches(line, nameEnd, "host"))
+                    host = string(valueStart, valueEnd);
+                else
+                if(matches(line, nameEnd, "range"))
+                    range = string(valueStart, valueEnd);
+                else
+                if(matches(line, nameEnd, "accept-encoding"))
+                    acceptEncoding = string(valueStart, valueEnd);
+                else
+                if(matches(line, nameEnd, "if-none-match"))
+                    ifNoneMatch = string(valueStart, valueEnd);
+                else
+                if(matches(line, nameEnd, "connection"))
+                    connection = string(valueStart, valueEnd);
+                else
+                if(matches(line, nameEnd, "content-length"))
+                {
+// can't tell where the body ends if it's garbage
+                    if(valueStart == valueEnd || valueEnd - valueStart > 18) return BAD;
+                    long value = 0;
+                    for(int i = valueStart; i < valueEnd; i++)
+                    {
+                        if(data[i] < '0' || data[i] > '9') return BAD;
+                        value = value * 10 + data[i] - '0';
+                    }
+                    contentLength = value;
+                }
+            }
+            line = nextLine(line);
+        }
+        return OK;
+    }
+
+// any header by its lower case name.  null if it wasn't sent.
+    String get(String name)
+    {
+        for(int i = 0; i < headerCount; i++)
+        {
+            if(matches(fields[i * 4], fields[i * 4 + 1], name))
+                return string(fields[i * 4 + 2], fields[i * 4 + 3]);
+        }
+        return null;
+    }
+
+// Connection: close or keep-alive.  Can be a list.
+    boolean hasConnection(String option)
+    {
+        if(connection == null) return false;
+        String[] options = connection.split(",");
+        for(int i = 0; i < options.length; i++)
+            if(options[i].trim().equalsIgnoreCase(option)) return true;
+        return false;
+    }
+}
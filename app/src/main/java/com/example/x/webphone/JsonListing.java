@@ -0,0 +1,134 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.io.IOException;
+import java.io.Writer;
+
+
+// Writes a directory listing for scripts as JSON.  Each entry goes
+// straight to the connection as it's visited:
+// {"path":"/sdcard","entries":[
+// {"name":"a.txt","size":6,"date":1700000000000,"isDir":false,"symlink":null},
+// ...],"total":2,"next":null}
+
+class JsonListing implements DirScanner.Visitor
+{
+    Writer out;
+    int count = 0;
+// the visitor can't throw, so the 1st error stops the writing
+    IOException error;
+
+    JsonListing(Writer out)
+    {
+        this.out = out;
+    }
+
+    void start(String path) throws IOException
+    {
+        out.write("{\"path\":");
+        writeString(path);
+        out.write(",\"entries\":[\n");
+    }
+
+    public void visit(DirEntry entry)
+    {
+        if(error != null) return;
+        try
+        {
+            if(count > 0) out.write(",\n");
+            out.write("{\"name\":");
+            writeString(entry.name);
+            out.write(",\"size\":");
+            out.write(Long.toString(entry.size));
+            out.write(",\"date\":");
+            out.write(Long.toString(entry.date));
+            out.write(entry.isDir ? ",\"isDir\":true" : ",\"isDir\":false");
+            out.write(",\"symlink\":");
+            if(entry.isLink)
+                writeString(entry.linkTarget);
+            else
+                out.write("null");
+            out.write('}');
+            count++;
+        } catch(IOException e)
+        {
+            error = e;
+        }
+    }
+
+// next is the cursor for the next page or null
+    void finish(int total, String next) throws IOException
+    {
+        if(error != null) throw error;
+        out.write("\n],\"total\":");
+        out.write(Integer.toString(total));
+        out.write(",\"next\":");
+        if(next == null)
+            out.write("null");
+        else
+            writeString(next);
+        out.write("}\n");
+        out.flush();
+    }
+
+    void writeString(String text) throws IOException
+    {
+        out.write('"');
+        int start = 0;
+        int length = text.length();
+        for(int i = 0; i < length; i++)
+        {
+            char c = text.charAt(i);
+            if(c >= 0x20 && c != '"' && c != '\\') continue;
+
+// write the run of plain characters before it
+            out.write(text, start, i - start);
+            start = i + 1;
+            switch(c)
+            {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    out.write("\\u00");
+                    out.write(Character.forDigit(c >> 4, 16));
+                    out.write(Character.forDigit(c & 0xf, 16));
+                    break;
+            }
+        }
+        out.write(text, start, length - start);
+        out.write('"');
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+// Rendered directory listings.  Keyed by the URL path & sort order.
+// An entry is only good while the directory has the same mtime.  The
+// handlers which change a directory drop its entries explicitly, since
+// editing a file doesn't change the directory mtime.
+
+class ListingCache
+{
+    static class Entry
+    {
+// the directory for invalidation
+        String dir;
+        long date;
+        byte[] data;
+    }
+
+// least recently used first
+    LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    long size = 0;
+    long maxSize;
+
+    ListingCache(long maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    static String getKey(String path, int sortOrder, boolean sortDescending)
+    {
+        return path + "\n" + sortOrder + (sortDescending ? "d" : "a");
+    }
+
+// returns null if it's not cached or the directory changed
+    synchronized byte[] get(String key, long date)
+    {
+        Entry entry = entries.get(key);
+        if(entry == null) return null;
+        if(entry.date != date)
+        {
+            remove(key, entry);
+            return null;
+        }
+        return entry.data;
+    }
+
+    synchronized void put(String key, String dir, long date, byte[] data)
+    {
+        if(data.length > maxSize / 4) return;
+
+        Entry old = entries.get(key);
+        if(old != null) remove(key, old);
+
+        Entry entry = new Entry();
+        entry.dir = dir;
+        entry.date = date;
+        entry.data = data;
+        entries.put(key, entry);
+        size += data.length;
+
+// drop the least recently used until it fits
+        Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator();
+        while(size > maxSize && i.hasNext())
+        {
+            Entry oldest = i.next().getValue();
+            size -= oldest.data.length;
+            i.remove();
+        }
+    }
+
+// drop every sort order of a directory
+    synchronized void invalidate(String dir)
+    {
+        Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator();
+        while(i.hasNext())
+        {
+            Entry entry = i.next().getValue();
+            if(entry.dir.equals(dir))
+            {
+                size -= entry.data.length;
+                i.remove();
+            }
+        }
+    }
+
+    void remove(String key, Entry entry)
+    {
+        entries.remove(key);
+        size -= entry.data.length;
+    }
+
+
+// passes the listing to the connection & keeps a copy for the cache.
+// Gives up on the copy if the listing gets too big.
+    static class Capture extends OutputStream
+    {
+        OutputStream out;
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        long limit;
+
+        Capture(OutputStream out, long limit)
+        {
+            this.out = out;
+            this.limit = limit;
+        }
+
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            if(data != null)
+            {
+                data.write(b);
+                if(data.size() > limit) data = null;
+            }
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            if(data != null)
+            {
+                data.write(b, off, len);
+                if(data.size() > limit) data = null;
+            }
+        }
+
+        public void flush() throws IOException
+        {
+            out.flush();
+        }
+
+// null if it was too big
+        byte[] getData()
+        {
+            if(data == null) return null;
+            return data.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+
+
+// Picks 1 page of a directory listing as the entries are read, so a huge
+// directory only keeps pageSize entries in memory.  The page starts after
+// the cursor entry, or ends before it when going backward.  A cursor is
+// the sort value & name of the last entry on the page before, so it stays
+// valid when files are added or removed.
+//
+// Entries collect in a buffer of 2 pages.  When it fills up, it's sorted
+// & the 2nd page is dropped.  Entries sorting after the last kept entry are
+// dropped without being stored.
+
+class ListingPage implements DirScanner.Visitor
+{
+// use the multithreaded sort above this many entries
+    static final int PARALLEL_MIN = 8192;
+// Arrays.parallelSort needs Java 8 or Android 7
+    static Method parallelSort = getParallelSort();
+
+// the listing order
+    Comparator<DirEntry> order;
+// the order in which entries are taken.  Reversed when going backward.
+    Comparator<DirEntry> takeOrder;
+    DirEntry cursor;
+    boolean backward;
+    int pageSize;
+    DirEntry[] buffer;
+    int count = 0;
+    int maxCount;
+// the last entry kept after the buffer was sorted
+    DirEntry worst;
+
+// all the entries in the directory
+    int total = 0;
+// entries on the cursor's side
+    int skipped = 0;
+// entries which could have been on the page
+    int passed = 0;
+
+// results from finish
+    DirEntry[] entries;
+// entries before the page
+    int first;
+    boolean hasPrev;
+    boolean hasNext;
+
+    ListingPage(Comparator<DirEntry> order, DirEntry cursor, boolean backward, int pageSize)
+    {
+        this.order = order;
+        this.cursor = cursor;
+        this.backward = backward;
+        this.pageSize = Math.max(pageSize, 1);
+        if(backward)
+            takeOrder = Collections.reverseOrder(order);
+        else
+            takeOrder = order;
+        maxCount = (int)Math.min(2L * this.pageSize, Integer.MAX_VALUE - 8);
+        buffer = new DirEntry[Math.min(maxCount, 1024)];
+    }
+
+    static Method getParallelSort()
+    {
+        try
+        {
+            return Arrays.class.getMethod("parallelSort", 
+                Object[].class, 
+                int.class, 
+                int.class, 
+                Comparator.class);
+        } catch(Throwable e)
+        {
+            return null;
+        }
+    }
+
+// sort the 1st count entries
+    static void sort(DirEntry[] entries, int count, Comparator<DirEntry> order)
+    {
+        if(count >= PARALLEL_MIN && parallelSort != null)
+        {
+            try
+            {
+                parallelSort.invoke(null, entries, 0, count, order);
+                return;
+            } catch(Exception e)
+            {
+                Stuff.log("ListingPage", "sort: " + e);
+            }
+        }
+        Arrays.sort(entries, 0, count, order);
+    }
+
+    public void visit(DirEntry entry)
+    {
+        total++;
+        if(cursor != null && takeOrder.compare(entry, cursor) <= 0)
+        {
+            skipped++;
+            return;
+        }
+
+        passed++;
+        if(worst != null && takeOrder.compare(entry, worst) >= 0) return;
+
+        if(count >= buffer.length)
+        {
+            if(count < maxCount)
+            {
+                buffer = Arrays.copyOf(buffer, 
+                    (int)Math.min(buffer.length * 2L, maxCount));
+            }
+            else
+            {
+// keep the best page
+                sort(buffer, count, takeOrder);
+                Arrays.fill(buffer, pageSize, count, null);
+                count = pageSize;
+                worst = buffer[pageSize - 1];
+                if(takeOrder.compare(entry, worst) >= 0) return;
+            }
+        }
+        buffer[count++] = entry;
+    }
+
+    void finish()
+    {
+        sort(buffer, count, takeOrder);
+        entries = Arrays.copyOf(buffer, Math.min(count, pageSize));
+        buffer = null;
+// sorted in the listing order
+        if(backward) Collections.reverse(Arrays.asList(entries));
+
+        boolean more = passed > entries.length;
+        if(backward)
+        {
+            first = passed - entries.length;
+            hasPrev = more;
+            hasNext = skipped > 0;
+        }
+        else
+        {
+            first = skipped;
+            hasPrev = skipped > 0;
+            hasNext = more;
+        }
+    }
+
+// the value a cursor stores for an entry
+    static long sortValue(DirEntry entry, int sortOrder)
+    {
+        switch(sortOrder)
+        {
+            case Stuff.SORT_SIZE:
+                return entry.size;
+            case Stuff.SORT_DATE:
+                return entry.date;
+            case Stuff.SORT_TOTAL:
+                return entry.getTotalSize();
+            default:
+                return 0;
+        }
+    }
+
+    static String getCursor(DirEntry entry, int sortOrder)
+    {
+        return sortValue(entry, sortOrder) + ":" + entry.name;
+    }
+
+// make an entry which sorts where the cursor points.  Returns null if it's garbage.
+    static DirEntry parseCursor(String text)
+    {
+        int colon = text.indexOf(':');
+        if(colon < 0) return null;
+        long value;
+        try
+        {
+            value = Long.parseLong(text.substring(0, colon));
+        } catch(NumberFormatException e)
+        {
+            return null;
+        }
+        DirEntry entry = new DirEntry("", text.substring(colon + 1), false, value, value);
+        entry.totalSize = value;
+        return entry;
+    }
+}
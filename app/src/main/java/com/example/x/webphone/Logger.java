@@ -0,0 +1,350 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+// Leveled logging off the request threads.  A message goes in a fixed ring
+// of slots & a background thread formats & writes it.  Putting it in only
+// takes a CAS, so handlers never wait on the console or logcat.  A full
+// ring drops messages instead of blocking & says how many were dropped.
+//
+// The format & its arguments are stored as is.  Each {} in the format is
+// replaced by the next argument on the drain thread, so a message below
+// the level costs 1 compare & a message above it doesn't build a string
+// on the request thread.  Arguments should be immutable.  Primitive
+// arguments get boxed, so guard those with isDebug() on hot paths.
+
+class Logger
+{
+    static final int DEBUG = 0;
+    static final int INFO = 1;
+    static final int WARN = 2;
+    static final int ERROR = 3;
+    static final int OFF = 4;
+    static final String[] NAMES = { "debug", "info", "warn", "error", "off" };
+
+// messages below this are ignored.  Can be changed at any time.
+    static volatile int level = INFO;
+
+// where the drain thread writes
+    interface Sink
+    {
+        void write(int level, String tag, String message);
+// after each batch
+        void flush();
+    }
+
+// standard output, flushed after each batch instead of each line
+    static class StreamSink implements Sink
+    {
+        PrintStream out = new PrintStream(
+            new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 65536),
+            false);
+
+        public void write(int level, String tag, String message)
+        {
+            out.println(tag + ":" + message);
+        }
+
+        public void flush()
+        {
+            out.flush();
+        }
+    }
+
+    static volatile Sink sink = new StreamSink();
+
+// must be a power of 2
+    static final int SIZE = 8192;
+    static final int MASK = SIZE - 1;
+
+    static class Slot
+    {
+        int level;
+        String tag;
+        String format;
+        Object a;
+        Object b;
+        Object c;
+        Object d;
+    }
+
+    static final Slot[] slots = new Slot[SIZE];
+// the position a slot can be filled at.  position + 1 once it's filled.
+    static final AtomicLongArray sequences = new AtomicLongArray(SIZE);
+    static
+    {
+        for(int i = 0; i < SIZE; i++)
+        {
+            slots[i] = new Slot();
+            sequences.set(i, i);
+        }
+    }
+// next position to fill
+    static final AtomicLong tail = new AtomicLong();
+// next position to drain.  Only used by the drainer.
+    static long head = 0;
+    static final AtomicLong dropped = new AtomicLong();
+    static final Object drainLock = new Object();
+    static Thread drainThread;
+    static volatile boolean waiting = false;
+
+
+    static boolean isEnabled(int level)
+    {
+        return level >= Logger.level;
+    }
+
+    static boolean isDebug()
+    {
+        return DEBUG >= level;
+    }
+
+    static void setLevel(int level)
+    {
+        Logger.level = Math.max(DEBUG, Math.min(OFF, level));
+    }
+
+// a level name or number.  Returns -1 if it's not a level.
+    static int parseLevel(String text)
+    {
+        for(int i = 0; i < NAMES.length; i++)
+            if(NAMES[i].equalsIgnoreCase(text)) return i;
+        try
+        {
+            int result = Integer.parseInt(text);
+            if(result >= DEBUG && result <= OFF) return result;
+        } catch(NumberFormatException e)
+        {
+        }
+        return -1;
+    }
+
+    static void debug(String tag, String format)
+    {
+        if(DEBUG >= level) add(DEBUG, tag, format, null, null, null, null);
+    }
+
+    static void debug(String tag, String format, Object a)
+    {
+        if(DEBUG >= level) add(DEBUG, tag, format, a, null, null, null);
+    }
+
+    static void debug(String tag, String format, Object a, Object b)
+    {
+        if(DEBUG >= level) add(DEBUG, tag, format, a, b, null, null);
+    }
+
+    static void debug(String tag, String format, Object a, Object b, Object c)
+    {
+        if(DEBUG >= level) add(DEBUG, tag, format, a, b, c, null);
+    }
+
+    static void debug(String tag, String format, Object a, Object b, Object c, Object d)
+    {
+        if(DEBUG >= level) add(DEBUG, tag, format, a, b, c, d);
+    }
+
+    static void info(String tag, String format)
+    {
+        if(INFO >= level) add(INFO, tag, format, null, null, null, null);
+    }
+
+    static void info(String tag, String format, Object a)
+    {
+        if(INFO >= level) add(INFO, tag, format, a, null, null, null);
+    }
+
+    static void info(String tag, String format, Object a, Object b)
+    {
+        if(INFO >= level) add(INFO, tag, format, a, b, null, null);
+    }
+
+    static void warn(String tag, String format)
+    {
+        if(WARN >= level) add(WARN, tag, format, null, null, null, null);
+    }
+
+    static void warn(String tag, String format, Object a)
+    {
+        if(WARN >= level) add(WARN, tag, format, a, null, null, null);
+    }
+
+    static void error(String tag, String format)
+    {
+        if(ERROR >= level) add(ERROR, tag, format, null, null, null, null);
+    }
+
+    static void error(String tag, String format, Object a)
+    {
+        if(ERROR >= level) add(ERROR, tag, format, a, null, null, null);
+    }
+
+// claim the next slot & fill it
+    static void add(int level, 
+        String tag, 
+        String format, 
+        Object a, 
+        Object b, 
+        Object c, 
+        Object d)
+    {
+        if(drainThread == null) startDrain();
+        while(true)
+        {
+            long position = tail.get();
+            int index = (int)(position & MASK);
+            long sequence = sequences.get(index);
+            if(sequence == position)
+            {
+                if(tail.compareAndSet(position, position + 1))
+                {
+                    Slot slot = slots[index];
+                    slot.level = level;
+                    slot.tag = tag;
+                    slot.format = format;
+                    slot.a = a;
+                    slot.b = b;
+                    slot.c = c;
+                    slot.d = d;
+// publish it
+                    sequences.set(index, position + 1);
+                    if(waiting) LockSupport.unpark(drainThread);
+                    return;
+                }
+            }
+            else
+            if(sequence < position)
+            {
+// the drainer is a whole ring behind
+                dropped.incrementAndGet();
+                return;
+            }
+// else another thread took the slot first
+        }
+    }
+
+    static synchronized void startDrain()
+    {
+        if(drainThread != null) return;
+        Thread thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                while(true)
+                {
+                    if(drain() == 0)
+                    {
+                        waiting = true;
+// check again in case a message came in before waiting was set
+                        if(!hasMessages()) LockSupport.parkNanos(100000000L);
+                        waiting = false;
+                    }
+                }
+            }
+        }, "Logger");
+        thread.setDaemon(true);
+        thread.start();
+// write what's left when the standalone version is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread()
+        {
+            public void run()
+            {
+                drain();
+            }
+        });
+        drainThread = thread;
+    }
+
+    static boolean hasMessages()
+    {
+        synchronized(drainLock)
+        {
+            return sequences.get((int)(head & MASK)) == head + 1;
+        }
+    }
+
+// write everything which is ready.  Returns the messages written.
+    static int drain()
+    {
+        synchronized(drainLock)
+        {
+            Sink out = sink;
+            int count = 0;
+            while(true)
+            {
+                int index = (int)(head & MASK);
+                if(sequences.get(index) != head + 1) break;
+                Slot slot = slots[index];
+                int level = slot.level;
+                String tag = slot.tag;
+                String message = format(slot);
+                slot.tag = null;
+                slot.format = null;
+                slot.a = null;
+                slot.b = null;
+                slot.c = null;
+                slot.d = null;
+// free it for the next time around the ring
+                sequences.set(index, head + SIZE);
+                head++;
+                out.write(level, tag, message);
+                count++;
+            }
+
+            long lost = dropped.getAndSet(0);
+            if(lost > 0) out.write(WARN, "Logger", "dropped " + lost + " messages");
+            if(count > 0 || lost > 0) out.flush();
+            return count;
+        }
+    }
+
+    static String format(Slot slot)
+    {
+        String format = slot.format;
+        if(slot.a == null && slot.b == null && slot.c == null && slot.d == null &&
+            format.indexOf("{}") < 0) return format;
+
+        Object[] args = { slot.a, slot.b, slot.c, slot.d };
+        StringBuilder result = new StringBuilder(format.length() + 32);
+        int start = 0;
+        int arg = 0;
+        while(true)
+        {
+            int i = format.indexOf("{}", start);
+            if(i < 0 || arg >= args.length) break;
+            result.append(format, start, i);
+            result.append(String.valueOf(args[arg++]));
+            start = i + 2;
+        }
+        result.append(format, start, format.length());
+        return result.toString();
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+// Counters for GET /__metrics in the Prometheus text format.  Everything is
+// an atomic so the handlers never wait on each other to count a request.
+// The page is built when it's scraped, so it can be polled every few seconds.
+
+class Metrics
+{
+// upper bounds of the latency buckets in seconds, as they appear on the page.
+// The last bucket is +Inf.
+    static final String BUCKETS[] =
+    {
+        "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05",
+        "0.1", "0.25", "0.5", "1", "2.5", "5", "10", "30", "60"
+    };
+    static final long BUCKET_NANOS[] = new long[BUCKETS.length];
+    static
+    {
+        for(int i = 0; i < BUCKETS.length; i++)
+            BUCKET_NANOS[i] = (long)(Double.parseDouble(BUCKETS[i]) * 1e9);
+    }
+
+// request latencies of 1 route
+    static class Histogram
+    {
+// not cumulative.  Summed when the page is built.
+        AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+        AtomicLong sum = new AtomicLong();
+
+        void observe(long nanos)
+        {
+            int i = 0;
+            while(i < BUCKET_NANOS.length && nanos > BUCKET_NANOS[i]) i++;
+            counts.incrementAndGet(i);
+            sum.addAndGet(nanos);
+        }
+    }
+
+// route -> latencies
+    static ConcurrentHashMap<String, Histogram> latencies = 
+        new ConcurrentHashMap<String, Histogram>();
+// route + " " + status -> requests
+    static ConcurrentHashMap<String, AtomicLong> requests = 
+        new ConcurrentHashMap<String, AtomicLong>();
+
+    static AtomicLong bytesIn = new AtomicLong();
+    static AtomicLong bytesOut = new AtomicLong();
+    static AtomicInteger activeConnections = new AtomicInteger();
+    static AtomicLong connections = new AtomicLong();
+// connections dropped because the thread pool was full
+    static AtomicLong rejected = new AtomicLong();
+    static AtomicLong uploadBytes = new AtomicLong();
+    static AtomicLong uploadNanos = new AtomicLong();
+    static AtomicLong uploads = new AtomicLong();
+
+
+    static Histogram getHistogram(String route)
+    {
+        Histogram histogram = latencies.get(route);
+        if(histogram == null)
+        {
+            Histogram histogram2 = new Histogram();
+            histogram = latencies.putIfAbsent(route, histogram2);
+            if(histogram == null) histogram = histogram2;
+        }
+        return histogram;
+    }
+
+    static AtomicLong getCounter(String key)
+    {
+        AtomicLong counter = requests.get(key);
+        if(counter == null)
+        {
+            AtomicLong counter2 = new AtomicLong();
+            counter = requests.putIfAbsent(key, counter2);
+            if(counter == null) counter = counter2;
+        }
+        return counter;
+    }
+
+// 1 finished request.  status is the response code or 0 if there was no response.
+    static void request(String route, int status, long nanos, long bytes)
+    {
+        getCounter(route + " " + status).incrementAndGet();
+        getHistogram(route).observe(nanos);
+        bytesOut.addAndGet(bytes);
+    }
+
+    static void connectionOpened()
+    {
+        connections.incrementAndGet();
+        activeConnections.incrementAndGet();
+    }
+
+    static void connectionClosed()
+    {
+        activeConnections.decrementAndGet();
+    }
+
+// bytes of 1 upload written to disk in nanos
+    static void upload(long bytes, long nanos)
+    {
+        uploads.incrementAndGet();
+        uploadChunk(bytes, nanos);
+    }
+
+// part of a resumable upload.  It's counted once when it finishes.
+    static void uploadChunk(long bytes, long nanos)
+    {
+        uploadBytes.addAndGet(bytes);
+        uploadNanos.addAndGet(nanos);
+    }
+
+
+// counts the bytes read from a connection
+    static class CountingInputStream extends FilterInputStream
+    {
+        CountingInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        public int read() throws IOException
+        {
+            int result = in.read();
+            if(result >= 0) bytesIn.incrementAndGet();
+            return result;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int result = in.read(b, off, len);
+            if(result > 0) bytesIn.addAndGet(result);
+            return result;
+        }
+
+        public long skip(long n) throws IOException
+        {
+            long result = in.skip(n);
+            if(result > 0) bytesIn.addAndGet(result);
+            return result;
+        }
+    }
+
+
+    static String formatSeconds(long nanos)
+    {
+        return String.valueOf(nanos / 1e9);
+    }
+
+    static void counter(StringBuilder page, String name, String help, long value)
+    {
+        page.append("# HELP " + name + " " + help + "\n");
+        page.append("# TYPE " + name + " counter\n");
+        page.append(name + " " + value + "\n");
+    }
+
+    static void gauge(StringBuilder page, String name, String help, long value)
+    {
+        page.append("# HELP " + name + " " + help + "\n");
+        page.append("# TYPE " + name + " gauge\n");
+        page.append(name + " " + value + "\n");
+    }
+
+// the whole page in the text exposition format
+    static String getPage()
+    {
+        StringBuilder page = new StringBuilder();
+
+// sorted so the page is stable between scrapes
+        page.append("# HELP webphone_requests_total Requests handled by route & status.\n");
+        page.append("# TYPE webphone_requests_total counter\n");
+        TreeMap<String, AtomicLong> sortedRequests = new TreeMap<String, AtomicLong>(requests);
+        for(Map.Entry<String, AtomicLong> entry : sortedRequests.entrySet())
+        {
+            String key = entry.getKey();
+            int space = key.indexOf(' ');
+            page.append("webphone_requests_total{route=\"" + key.substring(0, space) +
+                "\",code=\"" + key.substring(space + 1) + "\"} " + 
+                entry.getValue().get() + "\n");
+        }
+
+        page.append("# HELP webphone_request_duration_seconds Time from reading the request header to the end of the response.\n");
+        page.append("# TYPE webphone_request_duration_seconds histogram\n");
+        TreeMap<String, Histogram> sortedLatencies = new TreeMap<String, Histogram>(latencies);
+        for(Map.Entry<String, Histogram> entry : sortedLatencies.entrySet())
+        {
+            String route = entry.getKey();
+            Histogram histogram = entry.getValue();
+            long total = 0;
+            for(int i = 0; i <= BUCKETS.length; i++)
+            {
+                total += histogram.counts.get(i);
+                String le = (i < BUCKETS.length) ? BUCKETS[i] : "+Inf";
+                page.append("webphone_request_duration_seconds_bucket{route=\"" + route +
+                    "\",le=\"" + le + "\"} " + total + "\n");
+            }
+            page.append("webphone_request_duration_seconds_sum{route=\"" + route + "\"} " +
+                formatSeconds(histogram.sum.get()) + "\n");
+            page.append("webphone_request_duration_seconds_count{route=\"" + route + "\"} " +
+                total + "\n");
+        }
+
+        counter(page, "webphone_received_bytes_total", 
+            "Bytes read from connections.", 
+            bytesIn.get());
+        counter(page, "webphone_sent_bytes_total", 
+            "Bytes of response headers & bodies sent.", 
+            bytesOut.get());
+        gauge(page, "webphone_connections_active", 
+            "Open connections.", 
+            activeConnections.get());
+        counter(page, "webphone_connections_total", 
+            "Connections accepted.", 
+            connections.get());
+        counter(page, "webphone_connections_rejected_total", 
+            "Connections dropped because there were no threads left.", 
+            rejected.get());
+        counter(page, "webphone_uploads_total", 
+            "Uploads written to disk.  Resumable uploads count once when complete.", 
+            uploads.get());
+        counter(page, "webphone_upload_bytes_total", 
+            "Bytes of uploads written to disk.", 
+            uploadBytes.get());
+        page.append("# HELP webphone_upload_seconds_total Time spent receiving uploads.  Upload throughput is rate(bytes) / rate(seconds).\n");
+        page.append("# TYPE webphone_upload_seconds_total counter\n");
+        page.append("webphone_upload_seconds_total " + formatSeconds(uploadNanos.get()) + "\n");
+        return page.toString();
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+
+// Reads a multipart/form-data body in 1 pass.  Part bodies go straight
+// from the buffer to the output while a Boyer-Moore-Horspool search looks
+// for \r\n--boundary.  A boundary split across reads stays in the
+// buffer until the next read completes it.
+
+class MultipartScanner
+{
+    InputStream in;
+    byte[] buffer = new byte[65536];
+// unread data in the buffer
+    int start = 0;
+    int end = 0;
+    boolean gotEOF = false;
+// \r\n--boundary
+    byte[] delimiter;
+// how far to move the search when the last byte compared is this value
+    int[] skip = new int[256];
+// the closing --boundary-- was read
+    boolean lastPart = false;
+
+    MultipartScanner(InputStream in, String boundary)
+    {
+        this.in = in;
+        byte[] boundaryBytes = boundary.getBytes(StandardCharsets.ISO_8859_1);
+        delimiter = new byte[boundaryBytes.length + 4];
+        delimiter[0] = '\r';
+        delimiter[1] = '\n';
+        delimiter[2] = '-';
+        delimiter[3] = '-';
+        System.arraycopy(boundaryBytes, 0, delimiter, 4, boundaryBytes.length);
+
+        int length = delimiter.length;
+        for(int i = 0; i < skip.length; i++) skip[i] = length;
+        for(int i = 0; i < length - 1; i++)
+            skip[delimiter[i] & 0xff] = length - 1 - i;
+    }
+
+// move the unread data to the start & read more after it.
+// Returns false if nothing more could be read.
+    boolean fill() throws IOException
+    {
+        if(gotEOF) return false;
+        if(start > 0)
+        {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        if(end >= buffer.length) return false;
+        int result = in.read(buffer, end, buffer.length - end);
+        if(result <= 0)
+        {
+            gotEOF = true;
+            return false;
+        }
+        end += result;
+        return true;
+    }
+
+// 1 line without the \r\n.  null at the EOF.
+    String readLine() throws IOException
+    {
+        int i = start;
+        while(true)
+        {
+            while(i < end && buffer[i] != '\n') i++;
+            if(i < end) break;
+// a line longer than the buffer is cut off
+            int scanned = i - start;
+            if(!fill())
+            {
+                if(end == start) return null;
+                i = end;
+                break;
+            }
+            i = start + scanned;
+        }
+
+        int lineEnd = i;
+        if(lineEnd > start && buffer[lineEnd - 1] == '\r') lineEnd--;
+        String result = new String(buffer, start, lineEnd - start, StandardCharsets.ISO_8859_1);
+        start = Math.min(i + 1, end);
+        return result;
+    }
+
+// skip everything up to the 1st boundary line.  Returns false if there are no parts.
+    boolean skipPreamble() throws IOException
+    {
+        String first = new String(delimiter, 2, delimiter.length - 2, StandardCharsets.ISO_8859_1);
+        while(true)
+        {
+            String line = readLine();
+            if(line == null) return false;
+            if(line.startsWith(first))
+            {
+                lastPart = line.startsWith("--", first.length());
+                return !lastPart;
+            }
+        }
+    }
+
+// read the headers of a part up to the blank line.  null at the EOF.
+    String[] readHeaders() throws IOException
+    {
+        String[] result = new String[0];
+        while(true)
+        {
+            String line = readLine();
+            if(line == null) return null;
+            if(line.length() == 0) return result;
+            String[] result2 = new String[result.length + 1];
+            System.arraycopy(result, 0, result2, 0, result.length);
+            result2[result.length] = line;
+            result = result2;
+        }
+    }
+
+// write the body of a part to out & read the boundary after it.
+// Returns false if the body ended before the boundary.
+    boolean copyPart(OutputStream out) throws IOException
+    {
+        int length = delimiter.length;
+        int last = length - 1;
+        while(true)
+        {
+// Horspool search of the buffered data
+            int i = start;
+            while(i + length <= end)
+            {
+                int j = last;
+                while(j >= 0 && buffer[i + j] == delimiter[j]) j--;
+                if(j < 0)
+                {
+                    if(i > start) out.write(buffer, start, i - start);
+                    start = i + length;
+                    readBoundaryEnd();
+                    return true;
+                }
+                i += skip[buffer[i + last] & 0xff];
+            }
+
+// nothing before i can start a boundary
+            if(i > start) out.write(buffer, start, i - start);
+            start = i;
+            if(!fill())
+            {
+                if(end > start) out.write(buffer, start, end - start);
+                start = end;
+                lastPart = true;
+                return false;
+            }
+        }
+    }
+
+// -- after the boundary ends the body.  Otherwise skip to the next line.
+    void readBoundaryEnd() throws IOException
+    {
+        while(end - start < 2 && fill())
+        {
+        }
+        if(end - start >= 2 && buffer[start] == '-' && buffer[start + 1] == '-')
+        {
+            lastPart = true;
+            start += 2;
+            return;
+        }
+        if(readLine() == null) lastPart = true;
+    }
+}
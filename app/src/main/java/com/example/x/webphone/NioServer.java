@@ -0,0 +1,456 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+
+// Non blocking server core.  The accept loop hands connections to 1 selector
+// per core.  The selectors read request headers without tying up a thread,
+// so idle & slowly sending clients don't hold a worker.  Once a header is
+// complete, the connection goes to the same executor WebServer uses, running
+// the same handlers as WebServerThread.  The handlers write in blocking mode,
+// so a client which stops reading holds its worker until writeTimeout, when
+// its selector closes the connection.  Kept alive connections go back to
+// their selector to wait for the next request.
+
+class NioServer
+{
+    WebServer server;
+    Reactor reactors[];
+    ExecutorService workers;
+    int nextReactor = 0;
+// largest request header we'll buffer before dropping the connection
+    static final int MAX_HEADER = HttpRequest.MAX_HEADER;
+
+    NioServer(WebServer server)
+    {
+        this.server = server;
+    }
+
+    void run()
+    {
+        ServerSocketChannel serverChannel = null;
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(Stuff.PORT));
+
+            int totalReactors = Runtime.getRuntime().availableProcessors();
+            reactors = new Reactor[totalReactors];
+            for(int i = 0; i < totalReactors; i++)
+            {
+                reactors[i] = new Reactor();
+                reactors[i].start();
+            }
+        } catch (IOException e) {
+            Stuff.log("NioServer", "run: Could not start web server: " + e);
+            return;
+        }
+
+        workers = server.createExecutor();
+
+        Stuff.log("NioServer", "run: started web server on port " + Stuff.PORT +
+            " reactors=" + reactors.length);
+
+// accept loop
+        while(true)
+        {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                Logger.debug("NioServer", "run: got connection from {} IPv4={}",
+                        channel.socket().getInetAddress(),
+                        channel.socket().getInetAddress() instanceof Inet4Address);
+                if(!(channel.socket().getInetAddress() instanceof Inet4Address))
+                {
+                    channel.close();
+                    continue;
+                }
+
+                Metrics.connectionOpened();
+                reactors[nextReactor].add(new Header(channel));
+                nextReactor = (nextReactor + 1) % reactors.length;
+            } catch (IOException e)
+            {
+                Stuff.log("NioServer", "run: " + e);
+            }
+        }
+    }
+
+
+    static void close(SocketChannel channel)
+    {
+        Metrics.connectionClosed();
+        try {
+            channel.close();
+        } catch(IOException e)
+        {
+        }
+    }
+
+
+// the request header being read by a reactor
+    static class Header
+    {
+        SocketChannel channel;
+        Reactor reactor;
+        byte[] data = new byte[1024];
+        int size = 0;
+// requests handled on this connection
+        int requests = 0;
+// time of the last read for dropping idle connections
+        long lastActive;
+
+        Header(SocketChannel channel)
+        {
+            this.channel = channel;
+        }
+
+// append new bytes.  Returns true if the header is complete
+        boolean append(ByteBuffer buffer)
+        {
+            int start = size;
+            int length = buffer.remaining();
+            if(size + length > data.length)
+            {
+                int newSize = data.length;
+                while(newSize < size + length) newSize *= 2;
+                byte[] data2 = new byte[newSize];
+                System.arraycopy(data, 0, data2, 0, size);
+                data = data2;
+            }
+            buffer.get(data, size, length);
+            size += length;
+
+// search the new bytes for an empty line.  Back up in case it straddled reads.
+            int i = start - 2;
+            if(i < 1) i = 1;
+            for(; i < size; i++)
+            {
+                if(data[i] == '\n')
+                {
+                    if(data[i - 1] == '\n' ||
+                        (i >= 2 && data[i - 1] == '\r' && data[i - 2] == '\n'))
+                        return true;
+                }
+            }
+            return false;
+        }
+    }
+
+
+// 1 selector thread
+    class Reactor extends Thread
+    {
+        Selector selector;
+        ConcurrentLinkedQueue<Header> pending = new ConcurrentLinkedQueue<Header>();
+// connections from this selector being handled by workers
+        Set<Worker> busy = Collections.newSetFromMap(new ConcurrentHashMap<Worker, Boolean>());
+        long lastSweep = 0;
+
+        Reactor() throws IOException
+        {
+            selector = Selector.open();
+        }
+
+// called by the accept loop & workers
+        void add(Header header)
+        {
+            header.reactor = this;
+            pending.add(header);
+            selector.wakeup();
+        }
+
+// close connections which haven't sent a complete request in time
+// & connections which stopped taking the response
+        void sweep(long now)
+        {
+            for(Worker worker : busy)
+            {
+                WebServer.WebServerThread handler = worker.handler;
+                long writing = handler == null ? 0 : handler.writing;
+                if(writing != 0 && now - writing > Stuff.writeTimeout)
+                {
+                    Stuff.log("NioServer", "Reactor.sweep: write timed out");
+                    busy.remove(worker);
+// closing alone doesn't wake up a transferTo.  The worker counts the close.
+                    try {
+                        worker.header.channel.shutdownOutput();
+                    } catch(IOException e)
+                    {
+                    }
+                    try {
+                        worker.header.channel.close();
+                    } catch(IOException e)
+                    {
+                    }
+                }
+            }
+
+            Iterator<SelectionKey> i = selector.keys().iterator();
+            while(i.hasNext())
+            {
+                SelectionKey key = i.next();
+                Header header = (Header)key.attachment();
+                if(key.isValid() && 
+                    now - header.lastActive > Stuff.keepAliveTimeout)
+                {
+                    key.cancel();
+                    close(header.channel);
+                }
+            }
+        }
+
+        public void run()
+        {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(16384);
+            Vector<SelectionKey> ready = new Vector<SelectionKey>();
+
+            while(true)
+            {
+                try
+                {
+                    selector.select(1000);
+                    long now = System.currentTimeMillis();
+
+// register new connections
+                    while(true)
+                    {
+                        Header header = pending.poll();
+                        if(header == null) break;
+                        try
+                        {
+                            header.lastActive = now;
+                            header.channel.configureBlocking(false);
+                            header.channel.register(selector, SelectionKey.OP_READ, header);
+                        } catch(IOException e)
+                        {
+                            Stuff.log("NioServer", "Reactor.run: " + e);
+                            close(header.channel);
+                        }
+                    }
+
+                    if(now - lastSweep >= 1000)
+                    {
+                        sweep(now);
+                        lastSweep = now;
+                    }
+
+                    Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+                    while(i.hasNext())
+                    {
+                        SelectionKey key = i.next();
+                        i.remove();
+                        if(!key.isValid() || !key.isReadable()) continue;
+
+                        SocketChannel channel = (SocketChannel)key.channel();
+                        Header header = (Header)key.attachment();
+                        int result = -1;
+                        buffer.clear();
+                        try
+                        {
+                            result = channel.read(buffer);
+                        } catch(IOException e)
+                        {
+                        }
+
+                        if(result < 0)
+                        {
+                            key.cancel();
+                            close(channel);
+                            continue;
+                        }
+
+                        header.lastActive = now;
+                        Metrics.bytesIn.addAndGet(result);
+                        buffer.flip();
+                        if(header.append(buffer))
+                        {
+                            ready.add(key);
+                        }
+                        else
+                        if(header.size > MAX_HEADER)
+                        {
+                            Stuff.log("NioServer", "Reactor.run: header too big");
+                            key.cancel();
+                            close(channel);
+                        }
+                    }
+
+// hand complete headers to the workers.  The channel has to leave the selector
+// before it can go back to blocking mode.
+                    if(ready.size() > 0)
+                    {
+                        for(int j = 0; j < ready.size(); j++)
+                            ready.get(j).cancel();
+                        selector.selectNow();
+
+                        for(int j = 0; j < ready.size(); j++)
+                        {
+                            SelectionKey key = ready.get(j);
+                            SocketChannel channel = (SocketChannel)key.channel();
+                            try
+                            {
+                                channel.configureBlocking(true);
+                                workers.execute(new Worker((Header)key.attachment()));
+                            } catch(RejectedExecutionException e)
+                            {
+                                Stuff.log("NioServer", "Reactor.run: out of threads");
+                                Metrics.rejected.incrementAndGet();
+                                close(channel);
+                            } catch(Exception e)
+                            {
+                                Stuff.log("NioServer", "Reactor.run: " + e);
+                                close(channel);
+                            }
+                        }
+                        ready.clear();
+                    }
+                } catch(IOException e)
+                {
+                    Stuff.log("NioServer", "Reactor.run: " + e);
+                }
+            }
+        }
+    }
+
+
+// marks the handler as writing while the socket blocks
+    static class TimedOutputStream extends OutputStream
+    {
+        OutputStream out;
+        WebServer.WebServerThread handler;
+
+        TimedOutputStream(OutputStream out, WebServer.WebServerThread handler)
+        {
+            this.out = out;
+            this.handler = handler;
+        }
+
+        public void write(int b) throws IOException
+        {
+            handler.writing = System.currentTimeMillis();
+            try {
+                out.write(b);
+            } finally
+            {
+                handler.writing = 0;
+            }
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            handler.writing = System.currentTimeMillis();
+            try {
+                out.write(b, off, len);
+            } finally
+            {
+                handler.writing = 0;
+            }
+        }
+
+        public void flush() throws IOException
+        {
+            handler.writing = System.currentTimeMillis();
+            try {
+                out.flush();
+            } finally
+            {
+                handler.writing = 0;
+            }
+        }
+    }
+
+
+// run the handlers for 1 connection on a worker thread
+    class Worker implements Runnable
+    {
+        Header header;
+        volatile WebServer.WebServerThread handler;
+
+        Worker(Header header)
+        {
+            this.header = header;
+        }
+
+        public void run()
+        {
+            SocketChannel channel = header.channel;
+            Socket connection = channel.socket();
+            boolean keepAlive = false;
+            header.reactor.busy.add(this);
+            try
+            {
+// replay the header the reactor already read, then continue from the socket
+                HttpInput in = new HttpInput(new SequenceInputStream(
+                    new ByteArrayInputStream(header.data, 0, header.size),
+                    new Metrics.CountingInputStream(connection.getInputStream())));
+                handler = server.new WebServerThread(connection);
+                OutputStream out = new BufferedOutputStream(
+                    new TimedOutputStream(connection.getOutputStream(), handler));
+
+// handle pipelined requests which are already buffered.  The selector can't
+// see buffered bytes, so the connection only goes back when they're used up.
+                do
+                {
+                    keepAlive = handler.handleRequest(in, out, header.requests);
+                    header.requests++;
+                } while(keepAlive && in.available() > 0);
+                out.flush();
+            } catch(Exception e)
+            {
+                Stuff.log("NioServer", "Worker.run: " + e);
+                keepAlive = false;
+            }
+            header.reactor.busy.remove(this);
+
+            if(keepAlive)
+            {
+                header.size = 0;
+                header.reactor.add(header);
+            }
+            else
+                close(channel);
+        }
+    }
+}
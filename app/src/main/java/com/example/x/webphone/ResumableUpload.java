@@ -0,0 +1,309 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+
+// An upload which can continue after the connection drops, like tus.
+// The client creates it with the final size, then sends chunks at any
+// offsets, on any number of connections at once.  Chunks are written in
+// place & the ranges received so far are kept, so a HEAD tells the client
+// where to resume.  When every byte is in, the temp file is renamed
+// to the real name.
+
+class ResumableUpload
+{
+// uploads nobody has touched in this long are deleted
+    static final long EXPIRE = 24L * 60 * 60 * 1000;
+// how often any request looks for them
+    static final long EXPIRE_INTERVAL = 60L * 1000;
+    static long lastExpire = 0;
+    static Map<String, ResumableUpload> uploads = new HashMap<String, ResumableUpload>();
+
+    String id;
+    String dir;
+    String name;
+    long length;
+    File tempFile;
+    RandomAccessFile file;
+    FileChannel channel;
+// start -> end of the byte ranges written.  Never overlapping or touching.
+    TreeMap<Long, Long> received = new TreeMap<Long, Long>();
+// chunks being written
+    int writers = 0;
+    boolean complete = false;
+    long lastActive;
+
+    ResumableUpload(String dir, String name, long length) throws IOException
+    {
+        this.id = UUID.randomUUID().toString();
+        this.dir = dir;
+        this.name = name;
+        this.length = length;
+        tempFile = new File(dir, ".upload" + id);
+        file = new RandomAccessFile(tempFile, "rw");
+        channel = file.getChannel();
+        if(Stuff.presize)
+        {
+            try
+            {
+                file.setLength(length);
+            } catch(IOException e)
+            {
+                Stuff.log("ResumableUpload", "presize: " + e);
+            }
+        }
+        lastActive = System.currentTimeMillis();
+    }
+
+    static ResumableUpload create(String dir, String name, long length) throws IOException
+    {
+        ResumableUpload upload = new ResumableUpload(dir, name, length);
+        synchronized(uploads)
+        {
+            expire();
+            uploads.put(upload.id, upload);
+        }
+// nothing to send
+        if(length == 0) upload.finish();
+        return upload;
+    }
+
+    static ResumableUpload get(String id)
+    {
+        synchronized(uploads)
+        {
+            expire();
+            return uploads.get(id);
+        }
+    }
+
+// delete abandoned uploads.  Called with uploads locked.
+    static void expire()
+    {
+        long now = System.currentTimeMillis();
+        if(now - lastExpire < EXPIRE_INTERVAL) return;
+        lastExpire = now;
+        Iterator<ResumableUpload> i = uploads.values().iterator();
+        while(i.hasNext())
+        {
+            ResumableUpload upload = i.next();
+            synchronized(upload)
+            {
+                if(upload.writers == 0 && now - upload.lastActive > EXPIRE)
+                {
+                    Stuff.log("ResumableUpload", "expire: " + upload.tempFile);
+                    upload.close();
+                    upload.tempFile.delete();
+                    i.remove();
+                }
+            }
+        }
+    }
+
+// bytes received from the start without a gap.  Where a single stream resumes.
+    synchronized long getOffset()
+    {
+        if(complete) return length;
+        Long end = received.get(0L);
+        if(end == null) return 0;
+        return end;
+    }
+
+// add a written range, merging it with its neighbors
+    synchronized void addRange(long start, long end)
+    {
+        Map.Entry<Long, Long> before = received.floorEntry(start);
+        if(before != null && before.getValue() >= start)
+        {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        while(true)
+        {
+            Map.Entry<Long, Long> after = received.ceilingEntry(start);
+            if(after == null || after.getKey() > end) break;
+            end = Math.max(end, after.getValue());
+            received.remove(after.getKey());
+        }
+        received.put(start, end);
+        lastActive = System.currentTimeMillis();
+    }
+
+// write size bytes from in at offset.  Returns the bytes written.
+// The bytes count as received as they're written, so a dropped
+// connection keeps what got through.
+    long write(InputStream in, long offset, long size) throws IOException
+    {
+        synchronized(this)
+        {
+            if(complete) throw new IOException("upload already complete");
+            writers++;
+        }
+
+        long total = 0;
+        long startTime = System.nanoTime();
+        byte[] buffer = WebServer.getBuffer();
+        try
+        {
+            while(total < size)
+            {
+                int fragment = (int)Math.min(buffer.length, size - total);
+                int result = in.read(buffer, 0, fragment);
+                if(result < 0) break;
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, result);
+                long position = offset + total;
+                while(data.hasRemaining())
+                    position += channel.write(data, position);
+                addRange(offset + total, offset + total + result);
+                total += result;
+            }
+        } finally
+        {
+            WebServer.putBuffer(buffer);
+            Metrics.uploadChunk(total, System.nanoTime() - startTime);
+            boolean done;
+            synchronized(this)
+            {
+                writers--;
+                done = writers == 0 && !complete && getOffset() >= length;
+            }
+            if(done) finish();
+        }
+        return total;
+    }
+
+// all the bytes are in.  Sync & rename to the real name.  The file is
+// closed either way, so if it fails the upload is gone.
+    void finish() throws IOException
+    {
+        synchronized(this)
+        {
+            if(complete) return;
+            complete = true;
+        }
+
+        File newFile = new File(dir, name);
+        boolean renamed = false;
+        try
+        {
+            try
+            {
+                channel.truncate(length);
+                if(Stuff.syncUploads != UploadWriter.SYNC_NONE) channel.force(true);
+            } finally
+            {
+                close();
+            }
+            Stuff.log("ResumableUpload", "finish: renaming " + tempFile + " to " + newFile);
+            renamed = tempFile.renameTo(newFile);
+            if(!renamed) 
+                throw new IOException("couldn't rename " + tempFile + " to " + newFile);
+        } finally
+        {
+            if(!renamed) tempFile.delete();
+            synchronized(uploads)
+            {
+                uploads.remove(id);
+            }
+        }
+        Metrics.uploads.incrementAndGet();
+    }
+
+// abandon it
+    void delete()
+    {
+        synchronized(uploads)
+        {
+            uploads.remove(id);
+        }
+        synchronized(this)
+        {
+            complete = true;
+            close();
+            tempFile.delete();
+        }
+    }
+
+// get a value from an Upload-Metadata header: key base64,key base64
+    static String getMetadata(String header, String key)
+    {
+        if(header == null) return null;
+        String[] pairs = header.split(",");
+        for(int i = 0; i < pairs.length; i++)
+        {
+            String[] parts = pairs[i].trim().split(" ");
+            if(parts[0].equals(key))
+            {
+                if(parts.length < 2) return "";
+                return decodeBase64(parts[1]);
+            }
+        }
+        return null;
+    }
+
+// java.util.Base64 needs Android 8
+    static String decodeBase64(String text)
+    {
+        final String alphabet = 
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        byte[] result = new byte[text.length() * 3 / 4];
+        int size = 0;
+        int bits = 0;
+        int totalBits = 0;
+        for(int i = 0; i < text.length(); i++)
+        {
+            int value = alphabet.indexOf(text.charAt(i));
+            if(value < 0) continue;
+            bits = (bits << 6) | value;
+            totalBits += 6;
+            if(totalBits >= 8)
+            {
+                totalBits -= 8;
+                result[size++] = (byte)(bits >> totalBits);
+            }
+        }
+        return new String(result, 0, size, StandardCharsets.UTF_8);
+    }
+
+    void close()
+    {
+        try
+        {
+            file.close();
+        } catch(IOException e)
+        {
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.regex.Pattern;
+
+
+// Finds files by name across the whole tree under searchRoot.  The tree is
+// read in the background when the server starts & TreeWatcher keeps it
+// up to date.  Names repeat a lot
+// (cache, thumbs, IMG_0001.jpg) so each lower case name is stored once &
+// the entries point to it by number.  The unique names are joined into 1
+// string, which is searched with indexOf instead of testing every entry.
+// The matching names are marked, then the entries are passed to the
+// caller in tree order as they're found.
+
+class SearchIndex
+{
+// the last index built or null
+    static volatile SearchIndex current;
+    static volatile boolean building = false;
+
+// the tree the index was built from
+    DirEntry root;
+// every entry under the root in tree order
+    DirEntry[] entries;
+// index of each entry's name in names
+    int[] nameIds;
+// unique lower case names
+    String[] names;
+// the names joined by '/', which can't be in a name
+    String text;
+// where each name starts in text
+    int[] starts;
+
+// gets each match.  Return false to stop.
+    interface Results
+    {
+        boolean found(DirEntry entry);
+    }
+
+// read the tree & build the index on a background thread
+    static synchronized void start()
+    {
+        if(building || Stuff.searchRoot.length() == 0) return;
+        building = true;
+        Thread thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    long start = System.currentTimeMillis();
+                    SearchIndex index;
+// TreeWatcher builds it in its lock since events change the tree
+                    if(Stuff.watchFiles)
+                        index = TreeWatcher.load(Stuff.searchRoot);
+                    else
+                    {
+                        index = new SearchIndex(DirTree.load(Stuff.searchRoot));
+                        current = index;
+                    }
+                    Stuff.log("SearchIndex", "start: indexed " + index.entries.length + 
+                        " files with " + index.names.length + 
+                        " names in " + (System.currentTimeMillis() - start) + "ms");
+                } catch(Throwable e)
+                {
+                    Stuff.log("SearchIndex", "start: " + e);
+                } finally
+                {
+                    building = false;
+                }
+            }
+        }, "SearchIndex");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    SearchIndex(DirEntry root)
+    {
+        this.root = root;
+        Vector<DirEntry> list = new Vector<DirEntry>();
+        add(root, list);
+        entries = list.toArray(new DirEntry[list.size()]);
+
+        HashMap<String, Integer> ids = new HashMap<String, Integer>();
+        Vector<String> unique = new Vector<String>();
+        nameIds = new int[entries.length];
+        for(int i = 0; i < entries.length; i++)
+        {
+            String name = entries[i].sortName;
+            Integer id = ids.get(name);
+            if(id == null)
+            {
+                id = unique.size();
+                ids.put(name, id);
+                unique.add(name);
+            }
+            nameIds[i] = id;
+        }
+
+        names = unique.toArray(new String[unique.size()]);
+        starts = new int[names.length];
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < names.length; i++)
+        {
+            starts[i] = builder.length();
+            builder.append(names[i]);
+            builder.append('/');
+        }
+        text = builder.toString();
+    }
+
+// everything under dir without dir
+    static void add(DirEntry dir, Vector<DirEntry> list)
+    {
+        for(int i = 0; i < dir.contents.size(); i++)
+        {
+            DirEntry entry = dir.contents.get(i);
+            list.add(entry);
+            if(entry.isDir) add(entry, list);
+        }
+    }
+
+    static boolean isGlob(String query)
+    {
+        return query.indexOf('*') >= 0 || query.indexOf('?') >= 0;
+    }
+
+// * matches anything & ? matches 1 character
+    static Pattern globPattern(String query)
+    {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        for(int i = 0; i < query.length(); i++)
+        {
+            char c = query.charAt(i);
+            if(c != '*' && c != '?') continue;
+            if(i > start) regex.append(Pattern.quote(query.substring(start, i)));
+            regex.append(c == '*' ? ".*" : ".");
+            start = i + 1;
+        }
+        if(start < query.length()) regex.append(Pattern.quote(query.substring(start)));
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+// mark the names matching the query.  Substrings are found in the joined
+// names & globs have to match a whole name.
+    boolean[] matchNames(String query)
+    {
+        boolean[] matched = new boolean[names.length];
+        query = query.toLowerCase();
+        if(isGlob(query))
+        {
+            Pattern pattern = globPattern(query);
+            for(int i = 0; i < names.length; i++)
+                matched[i] = pattern.matcher(names[i]).matches();
+        }
+        else
+        if(query.length() > 0 && query.indexOf('/') < 0)
+        {
+            int position = 0;
+            while(true)
+            {
+                position = text.indexOf(query, position);
+                if(position < 0) break;
+                int id = Arrays.binarySearch(starts, position);
+                if(id < 0) id = -id - 2;
+                matched[id] = true;
+// skip to the next name
+                if(id + 1 >= starts.length) break;
+                position = starts[id + 1];
+            }
+        }
+        return matched;
+    }
+
+// pass the entries with matching names under dir to results.  dir is null
+// to search everything.  Returns the number of matches passed.
+    int search(String query, String dir, Results results)
+    {
+        boolean[] matched = matchNames(query);
+        String prefix = null;
+        if(dir != null && !dir.equals(root.path))
+            prefix = dir.endsWith("/") ? dir : dir + "/";
+        int count = 0;
+        for(int i = 0; i < entries.length; i++)
+        {
+            if(!matched[nameIds[i]]) continue;
+            DirEntry entry = entries[i];
+            if(prefix != null && !entry.path.startsWith(prefix)) continue;
+            if(!results.found(entry)) break;
+            count++;
+        }
+        return count;
+    }
+}
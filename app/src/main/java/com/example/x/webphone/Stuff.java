@@ -31,12 +31,12 @@ import android.app.Service;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Environment;
+import android.os.FileObserver;
 import android.os.IBinder;
 import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.File;
-import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Vector;
 
 public class Stuff extends Service
@@ -58,9 +58,61 @@ public class Stuff extends Service
     static final int SORT_PATH = 0;
     static final int SORT_SIZE = 1;
     static final int SORT_DATE = 2;
+// total size of everything under each entry
+    static final int SORT_TOTAL = 3;
     static int sortOrder = SORT_PATH;
     static boolean sortDescending = false;
     static String private_dir = "";
+// use the NIO server instead of 1 thread per connection
+    static boolean useNio = false;
+// how WebServer runs connections.  Android has no virtual threads.
+    static final int DISPATCH_POOL = 0;
+    static final int DISPATCH_VIRTUAL = 1;
+    static int dispatchMode = DISPATCH_POOL;
+// ms to wait for the next request on a kept alive connection
+    static int keepAliveTimeout = 15000;
+// ms a write to a client can stall before the NIO server drops it
+    static int writeTimeout = 30000;
+// requests on 1 connection before closing it
+    static int maxRequests = 100;
+// send files straight from the file to the socket
+    static boolean zeroCopy = true;
+// gzip text files & listings when the client takes it
+    static boolean compress = true;
+// keep gzipped copies of text files in cache_dir
+    static boolean precompress = false;
+// files smaller than this aren't compressed
+    static int compressMin = 1024;
+// files bigger than this are compressed on the fly
+    static long precompressMax = 0x1000000;
+// 1 to 9.  Lower takes less CPU.
+    static int compressLevel = 6;
+// threads deflating 1 file in a ZIP download.  1 turns it off.
+    static int archiveThreads = Runtime.getRuntime().availableProcessors();
+// bytes of rendered directory listings to keep
+    static long listingCacheSize = 0x400000;
+// entries on 1 page of a directory listing
+    static int pageSize = 1000;
+// sort numbers in names by value
+    static boolean naturalSort = true;
+// show the total size & files under each directory
+    static boolean dirSizes = false;
+// the tree the search index covers.  Empty turns it off.
+    static String searchRoot = "";
+// keep the search tree up to date as files change
+    static boolean watchFiles = false;
+// most directories watched.  The kernel has its own limit.
+    static int maxWatches = 8192;
+// FileObservers stop when they're garbage collected
+    static HashMap<String, FileObserver> observers = new HashMap<String, FileObserver>();
+// the kernel dropped events.  FileObserver doesn't have a name for it.
+    static final int Q_OVERFLOW = 0x4000;
+// set the final length of uploads before writing them.  This is only a
+// size hint.  Most filesystems make a sparse file, so no space is reserved.
+    static boolean presize = false;
+// 0 = leave uploads to the OS, 1 = sync when done, 2 = sync every 16MB
+    static int syncUploads = 0;
+    static String cache_dir = "";
 
     static void initialize(Activity activity)
     {
@@ -78,11 +130,89 @@ public class Stuff extends Service
         else
             Stuff.sortDescending = true;
         private_dir = activity.getFilesDir().toString();
+        useNio = file.getInt("nio", 0) != 0;
+        cache_dir = activity.getCacheDir().toString();
+        compress = file.getInt("compress", 1) != 0;
+        precompress = file.getInt("precompress", 0) != 0;
+        compressMin = file.getInt("compressMin", compressMin);
+        compressLevel = file.getInt("compressLevel", compressLevel);
+        archiveThreads = file.getInt("archiveThreads", archiveThreads);
+        keepAliveTimeout = file.getInt("keepAliveTimeout", keepAliveTimeout);
+        writeTimeout = file.getInt("writeTimeout", writeTimeout);
+        maxRequests = file.getInt("maxRequests", maxRequests);
+        pageSize = file.getInt("pageSize", pageSize);
+        naturalSort = file.getInt("naturalSort", 1) != 0;
+        dirSizes = file.getInt("dirSizes", 0) != 0;
+        searchRoot = file.getString("searchRoot", searchRoot);
+        watchFiles = file.getInt("watchFiles", 0) != 0;
+        maxWatches = file.getInt("maxWatches", maxWatches);
+        presize = file.getInt("presize", 0) != 0;
+        syncUploads = file.getInt("syncUploads", syncUploads);
+        Logger.setLevel(file.getInt("logLevel", Logger.level));
     }
 
+// report changes in dir to TreeWatcher
+    static synchronized boolean watch(final String dir)
+    {
+        FileObserver observer = new FileObserver(dir, 
+            FileObserver.CREATE | 
+            FileObserver.DELETE | 
+            FileObserver.MOVED_FROM | 
+            FileObserver.MOVED_TO | 
+            FileObserver.CLOSE_WRITE)
+        {
+            public void onEvent(int event, String path)
+            {
+                if((event & Q_OVERFLOW) != 0)
+                {
+                    TreeWatcher.overflow(dir);
+                    return;
+                }
+                if(path == null) return;
+                event &= FileObserver.ALL_EVENTS;
+                if((event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0)
+                    TreeWatcher.created(dir, path);
+                else
+                if((event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0)
+                    TreeWatcher.deleted(dir, path);
+                else
+                if((event & FileObserver.CLOSE_WRITE) != 0)
+                    TreeWatcher.modified(dir, path);
+            }
+        };
+        observer.startWatching();
+        FileObserver old = observers.put(dir, observer);
+        if(old != null) old.stopWatching();
+        return true;
+    }
+
+    static synchronized void unwatch(String dir)
+    {
+        FileObserver observer = observers.remove(dir);
+        if(observer != null) observer.stopWatching();
+    }
+
+// everything goes through the Logger thread
     static void log(String x, String y)
     {
-        Log.i(x, y);
+        Logger.info(x, "{}", y);
+    }
+
+// the Logger thread writes to logcat
+    static final int[] PRIORITIES = { Log.DEBUG, Log.INFO, Log.WARN, Log.ERROR, Log.ERROR };
+    static
+    {
+        Logger.sink = new Logger.Sink()
+        {
+            public void write(int level, String tag, String message)
+            {
+                Log.println(PRIORITIES[level], tag, message);
+            }
+
+            public void flush()
+            {
+            }
+        };
     }
 
     static void saveDefaults()
@@ -94,6 +224,24 @@ public class Stuff extends Service
 		
 		file.putInt("sortOrder", sortOrder);
 		file.putInt("descending", sortDescending ? 1 : 0);
+		file.putInt("nio", useNio ? 1 : 0);
+		file.putInt("compress", compress ? 1 : 0);
+		file.putInt("precompress", precompress ? 1 : 0);
+		file.putInt("compressMin", compressMin);
+		file.putInt("compressLevel", compressLevel);
+		file.putInt("archiveThreads", archiveThreads);
+		file.putInt("keepAliveTimeout", keepAliveTimeout);
+		file.putInt("writeTimeout", writeTimeout);
+		file.putInt("maxRequests", maxRequests);
+		file.putInt("pageSize", pageSize);
+		file.putInt("naturalSort", naturalSort ? 1 : 0);
+		file.putInt("dirSizes", dirSizes ? 1 : 0);
+		file.putString("searchRoot", searchRoot);
+		file.putInt("watchFiles", watchFiles ? 1 : 0);
+		file.putInt("maxWatches", maxWatches);
+		file.putInt("presize", presize ? 1 : 0);
+		file.putInt("syncUploads", syncUploads);
+		file.putInt("logLevel", Logger.level);
 		file.commit();
     }
 
@@ -155,22 +303,7 @@ public class Stuff extends Service
     static void loadDir(DirEntry parent)
     {
         // doesn't follow symbolic links
-        File[] files = new File(parent.path).listFiles();
-
-        //Log.i("x", "Stuff.loadDir path=" + parent.path + " files=" + files);
-        if(files != null) {
-            Arrays.sort(files);
-            for (int i = 0; i < files.length; i++) {
-                DirEntry entry = new DirEntry(files[i].getPath());
-                parent.contents.add(entry);
-                entry.isDir = files[i].isDirectory();
-                entry.parent = parent;
-                if (entry.isDir) {
-                    loadDir(entry);
-                }
-            }
-        }
-        
+        DirTree.load(parent);
     }
     
     static void dumpDir(int indent, DirEntry dir)
@@ -0,0 +1,170 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+// Writes a ustar archive to a stream as the files are read.  No compression,
+// so it's the fastest way to get a directory off the phone.  Names which
+// don't fit in the header & files over 8GB get a pax header before them.
+// The size in the header is what the file had when it was listed.  If it
+// changes while it's read, the data is truncated or padded with 0 to match.
+
+class TarStream implements Archive.Writer
+{
+    static final int BLOCK = 512;
+// largest size the octal field holds
+    static final long MAX_SIZE = 077777777777L;
+
+    OutputStream out;
+    byte[] header = new byte[BLOCK];
+    byte[] zeros = new byte[BLOCK];
+
+    TarStream(OutputStream out)
+    {
+        this.out = out;
+    }
+
+// store an octal number with a trailing NUL
+    void putOctal(int offset, int length, long value)
+    {
+        String text = Long.toOctalString(value);
+        int start = offset + length - 1 - text.length();
+        for(int i = offset; i < start; i++) header[i] = '0';
+        for(int i = 0; i < text.length(); i++) 
+            header[start + i] = (byte)text.charAt(i);
+        header[offset + length - 1] = 0;
+    }
+
+    void putString(int offset, int length, byte[] text)
+    {
+        System.arraycopy(text, 0, header, offset, Math.min(length, text.length));
+    }
+
+    void writeHeader(byte[] name, byte type, long size, long date, int mode) 
+        throws IOException
+    {
+        Arrays.fill(header, (byte)0);
+        putString(0, 100, name);
+        putOctal(100, 8, mode);
+        putOctal(108, 8, 0);
+        putOctal(116, 8, 0);
+        putOctal(124, 12, Math.min(size, MAX_SIZE));
+        putOctal(136, 12, Math.max(date / 1000, 0));
+        header[156] = type;
+        putString(257, 8, "ustar\00000".getBytes(StandardCharsets.ISO_8859_1));
+
+// checksum is computed with the field full of spaces
+        Arrays.fill(header, 148, 156, (byte)' ');
+        long checksum = 0;
+        for(int i = 0; i < BLOCK; i++) checksum += header[i] & 0xff;
+        putOctal(148, 7, checksum);
+        header[155] = ' ';
+        out.write(header);
+    }
+
+// a pax record is "<length> <key>=<value>\n" where the length counts itself
+    static String paxRecord(String key, String value)
+    {
+        int length = key.length() + 
+            value.getBytes(StandardCharsets.UTF_8).length + 3;
+        int digits = Integer.toString(length).length();
+        while(Integer.toString(length + digits).length() != digits) digits++;
+        return (length + digits) + " " + key + "=" + value + "\n";
+    }
+
+    void writeEntry(String name, byte type, long size, long date, int mode) 
+        throws IOException
+    {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if(nameBytes.length > 100 || size > MAX_SIZE)
+        {
+            String pax = "";
+            if(nameBytes.length > 100) pax += paxRecord("path", name);
+            if(size > MAX_SIZE) pax += paxRecord("size", Long.toString(size));
+            byte[] paxBytes = pax.getBytes(StandardCharsets.UTF_8);
+            writeHeader("././@PaxHeader".getBytes(StandardCharsets.ISO_8859_1),
+                (byte)'x', 
+                paxBytes.length, 
+                date, 
+                0644);
+            out.write(paxBytes);
+            pad(paxBytes.length);
+// the pax path replaces the truncated name
+            nameBytes = Arrays.copyOf(nameBytes, Math.min(nameBytes.length, 100));
+        }
+        writeHeader(nameBytes, type, size, date, mode);
+    }
+
+    void pad(long size) throws IOException
+    {
+        int remainder = (int)(size % BLOCK);
+        if(remainder > 0) out.write(zeros, 0, BLOCK - remainder);
+    }
+
+    public void addDirectory(String name, long date) throws IOException
+    {
+        writeEntry(name.endsWith("/") ? name : name + "/", (byte)'5', 0, date, 0755);
+    }
+
+    public void addFile(String name, long date, long size, InputStream in) throws IOException
+    {
+        writeEntry(name, (byte)'0', size, date, 0644);
+        byte[] buffer = WebServer.getBuffer();
+        long remaining = size;
+        try
+        {
+            while(remaining > 0)
+            {
+                int result = in.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+                if(result < 0) break;
+                out.write(buffer, 0, result);
+                remaining -= result;
+            }
+// file shrank
+            Arrays.fill(buffer, (byte)0);
+            while(remaining > 0)
+            {
+                int fragment = (int)Math.min(buffer.length, remaining);
+                out.write(buffer, 0, fragment);
+                remaining -= fragment;
+            }
+        } finally
+        {
+            WebServer.putBuffer(buffer);
+        }
+        pad(size);
+    }
+
+// 2 empty blocks end the archive
+    public void finish() throws IOException
+    {
+        out.write(zeros);
+        out.write(zeros);
+        out.flush();
+    }
+}
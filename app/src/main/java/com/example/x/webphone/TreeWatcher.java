@@ -0,0 +1,285 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+
+// Keeps the search tree up to date as files change instead of reading it
+// all again.  Stuff.watch asks the platform to report changes in each
+// directory: WatchService on the standalone version & FileObserver on the
+// phone.  Each change updates 1 entry.  A new directory is read with
+// everything in it, since it may have been moved in.  Directories are
+// watched before they're read, so nothing created in between is missed.  When the platform
+// drops events, only the directories they were for are read again.  A
+// full queue on Linux reports every directory, so they're collected & only
+// the top ones are read, once.  After maxWatches directories or the 1st
+// directory the platform refuses, no more are watched, so changes under
+// the rest only show up after a restart.
+//
+// The names in the search index change only when entries are created or
+// deleted.  Then the index is built again from the tree in memory, at
+// most once per REBUILD_DELAY.
+
+class TreeWatcher
+{
+    static final int REBUILD_DELAY = 1000;
+
+    static DirEntry root;
+// every directory being watched
+    static HashMap<String, DirEntry> dirs = new HashMap<String, DirEntry>();
+// names changed since the index was built
+    static boolean dirty = false;
+// directories the platform couldn't watch
+    static int failed = 0;
+// directories being watched
+    static HashSet<String> watched = new HashSet<String>();
+// stopped watching new directories
+    static boolean full = false;
+// directories which lost events
+    static HashSet<String> overflowed = new HashSet<String>();
+
+// read the tree under top, watch it & publish the 1st index.  Events
+// wait for the lock until the index is built from the whole tree.
+    static SearchIndex load(String top)
+    {
+        SearchIndex index;
+        synchronized(TreeWatcher.class)
+        {
+            root = new DirEntry(top);
+            root.isDir = true;
+            loadAndWatch(root);
+            dirty = false;
+            index = new SearchIndex(root);
+            SearchIndex.current = index;
+        }
+        Stuff.log("TreeWatcher", "load: watching " + watched.size() + 
+            " directories" + 
+            (failed > 0 ? ".  " + failed + " couldn't be watched" : ""));
+
+        Thread thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                while(true)
+                {
+                    try
+                    {
+                        Thread.sleep(REBUILD_DELAY);
+                    } catch(InterruptedException e)
+                    {
+                        return;
+                    }
+                    rebuild();
+                }
+            }
+        }, "TreeWatcher");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        return index;
+    }
+
+    static void rebuild()
+    {
+        synchronized(TreeWatcher.class)
+        {
+            if(!dirty) return;
+            rescan();
+            dirty = false;
+// published in the lock so an older index never replaces it
+            SearchIndex.current = new SearchIndex(root);
+        }
+    }
+
+// like DirTree.load but each directory is watched 1st
+    static void loadAndWatch(DirEntry dir)
+    {
+        dirs.put(dir.path, dir);
+        watch(dir.path);
+        DirEntry[] files = DirScanner.list(dir.path);
+        if(files == null) return;
+        Arrays.sort(files, DirTree.BY_NAME);
+        for(int i = 0; i < files.length; i++)
+        {
+            DirEntry entry = files[i];
+            entry.parent = dir;
+            dir.contents.add(entry);
+            if(entry.isDir && !entry.isLink) loadAndWatch(entry);
+        }
+    }
+
+// the watch limit is usually why it fails, so stop asking after that
+    static void watch(String dir)
+    {
+        if(!full && 
+            watched.size() < Stuff.maxWatches && 
+            Stuff.watch(dir))
+        {
+            watched.add(dir);
+            return;
+        }
+
+        failed++;
+        if(!full)
+        {
+            full = true;
+            Stuff.log("TreeWatcher", "watch: stopped at " + watched.size() + 
+                " directories.  Changes under the rest won't be seen.");
+        }
+    }
+
+    static void unwatchTree(DirEntry dir)
+    {
+        dirs.remove(dir.path);
+        if(watched.remove(dir.path)) Stuff.unwatch(dir.path);
+        for(int i = 0; i < dir.contents.size(); i++)
+        {
+            DirEntry entry = dir.contents.get(i);
+            if(entry.isDir && !entry.isLink) unwatchTree(entry);
+        }
+    }
+
+// where name is in the parent or where it goes as a negative number
+    static int find(DirEntry parent, String name)
+    {
+        return Collections.binarySearch(parent.contents, 
+            new DirEntry("", name, false, 0, 0), 
+            DirTree.BY_NAME);
+    }
+
+    static void remove(DirEntry parent, int index)
+    {
+        DirEntry entry = parent.contents.remove(index);
+        if(entry.isDir && !entry.isLink) unwatchTree(entry);
+        dirty = true;
+    }
+
+// name was created in dir or moved into it
+    static synchronized void created(String dir, String name)
+    {
+        DirEntry parent = dirs.get(dir);
+        if(parent == null) return;
+        int index = find(parent, name);
+// already read with a new directory
+        if(index >= 0)
+        {
+            modified(dir, name);
+            return;
+        }
+        DirEntry entry = DirScanner.stat(dir, name);
+        if(entry == null) return;
+
+        entry.parent = parent;
+        parent.contents.add(-index - 1, entry);
+        if(entry.isDir && !entry.isLink) loadAndWatch(entry);
+        dirty = true;
+        Logger.debug("TreeWatcher", "created {}", entry.path);
+    }
+
+// name was deleted from dir or moved out of it
+    static synchronized void deleted(String dir, String name)
+    {
+        DirEntry parent = dirs.get(dir);
+        if(parent == null) return;
+        int index = find(parent, name);
+        if(index < 0) return;
+        remove(parent, index);
+        Logger.debug("TreeWatcher", "deleted {}/{}", dir, name);
+    }
+
+// the size or date of name changed
+    static synchronized void modified(String dir, String name)
+    {
+        DirEntry parent = dirs.get(dir);
+        if(parent == null) return;
+        int index = find(parent, name);
+        if(index < 0)
+        {
+// missed the create
+            created(dir, name);
+            return;
+        }
+        DirEntry entry = parent.contents.get(index);
+        DirEntry current = DirScanner.stat(dir, name);
+        if(current == null)
+        {
+            remove(parent, index);
+            return;
+        }
+        entry.size = current.size;
+        entry.date = current.date;
+    }
+
+// events for dir were lost.  It's read again with the next rebuild.
+    static synchronized void overflow(String dir)
+    {
+        if(!dirs.containsKey(dir)) return;
+        overflowed.add(dir);
+        dirty = true;
+    }
+
+// read the directories which lost events & everything under them again
+    static void rescan()
+    {
+        Iterator<String> i = overflowed.iterator();
+        while(i.hasNext())
+        {
+            String dir = i.next();
+// the parent is being read again anyway
+            boolean covered = false;
+            for(String parent = getParent(dir); 
+                parent != null && !covered; 
+                parent = getParent(parent))
+                covered = overflowed.contains(parent);
+            if(!covered) rescan(dir);
+        }
+        overflowed.clear();
+    }
+
+    static void rescan(String dir)
+    {
+        DirEntry parent = dirs.get(dir);
+        if(parent == null) return;
+        Stuff.log("TreeWatcher", "rescan: reading " + dir + " again");
+        for(int i = 0; i < parent.contents.size(); i++)
+        {
+            DirEntry entry = parent.contents.get(i);
+            if(entry.isDir && !entry.isLink) unwatchTree(entry);
+        }
+        parent.contents.clear();
+        loadAndWatch(parent);
+    }
+
+// null above the root
+    static String getParent(String dir)
+    {
+        if(dir.equals(root.path)) return null;
+        int slash = dir.lastIndexOf('/');
+        if(slash <= 0) return null;
+        return dir.substring(0, slash);
+    }
+}
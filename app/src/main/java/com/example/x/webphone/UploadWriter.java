@@ -0,0 +1,252 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+// Writes an upload to a file on another thread, so the connection keeps
+// being read while the flash is busy.  The parser fills pooled buffers
+// & a writer thread drains them.  Only a few buffers can be waiting, so
+// a slow disk still slows the connection down instead of using up memory.
+
+class UploadWriter extends OutputStream
+{
+// buffers waiting for the writer
+    static final int QUEUE_SIZE = 2;
+// with SYNC_PERIODIC, bytes written between syncs
+    static final long SYNC_INTERVAL = 0x1000000;
+// Stuff.syncUploads
+    static final int SYNC_NONE = 0;
+    static final int SYNC_CLOSE = 1;
+    static final int SYNC_PERIODIC = 2;
+
+    static ExecutorService writers = Executors.newCachedThreadPool();
+
+    static class Chunk
+    {
+        byte[] data;
+        int size;
+
+        Chunk(byte[] data, int size)
+        {
+            this.data = data;
+            this.size = size;
+        }
+    }
+// tells the writer to stop
+    static final Chunk END = new Chunk(null, -1);
+
+    RandomAccessFile file;
+    FileChannel channel;
+    ArrayBlockingQueue<Chunk> queue = new ArrayBlockingQueue<Chunk>(QUEUE_SIZE);
+// the buffer being filled
+    byte[] buffer;
+    int size = 0;
+// total bytes written
+    long total = 0;
+    boolean presized = false;
+// the writer thread's error
+    volatile IOException error;
+    Object done = new Object();
+    boolean finished = false;
+    boolean closed = false;
+// for the upload throughput
+    long startTime = System.nanoTime();
+
+// sizeHint is the final size if it's known or -1
+    UploadWriter(File path, long sizeHint) throws IOException
+    {
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+// only a hint.  It doesn't reserve any blocks.
+        if(Stuff.presize && sizeHint > 0)
+        {
+            try
+            {
+                file.setLength(sizeHint);
+                presized = true;
+            } catch(IOException e)
+            {
+                Stuff.log("UploadWriter", "presize: " + e);
+            }
+        }
+
+        writers.execute(new Runnable()
+        {
+            public void run()
+            {
+                writeChunks();
+            }
+        });
+    }
+
+// the writer thread
+    void writeChunks()
+    {
+        long unsynced = 0;
+        while(true)
+        {
+            Chunk chunk;
+            try
+            {
+                chunk = queue.take();
+            } catch(InterruptedException e)
+            {
+                continue;
+            }
+            if(chunk == END) break;
+
+            if(error == null)
+            {
+                try
+                {
+                    ByteBuffer data = ByteBuffer.wrap(chunk.data, 0, chunk.size);
+                    while(data.hasRemaining()) channel.write(data);
+                    unsynced += chunk.size;
+                    if(Stuff.syncUploads == SYNC_PERIODIC && unsynced >= SYNC_INTERVAL)
+                    {
+                        channel.force(false);
+                        unsynced = 0;
+                    }
+                } catch(IOException e)
+                {
+                    error = e;
+                }
+            }
+            WebServer.putBuffer(chunk.data);
+        }
+
+        synchronized(done)
+        {
+            finished = true;
+            done.notifyAll();
+        }
+    }
+
+    void checkError() throws IOException
+    {
+        if(error != null) throw error;
+    }
+
+// hand the full buffer to the writer
+    void queueBuffer() throws IOException
+    {
+        if(size == 0) return;
+        try
+        {
+            queue.put(new Chunk(buffer, size));
+        } catch(InterruptedException e)
+        {
+            throw new IOException("interrupted");
+        }
+        buffer = null;
+        size = 0;
+    }
+
+    public void write(int b) throws IOException
+    {
+        checkError();
+        if(buffer == null) buffer = WebServer.getBuffer();
+        buffer[size++] = (byte)b;
+        total++;
+        if(size >= buffer.length) queueBuffer();
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException
+    {
+        checkError();
+        total += length;
+        while(length > 0)
+        {
+            if(buffer == null) buffer = WebServer.getBuffer();
+            int fragment = Math.min(length, buffer.length - size);
+            System.arraycopy(data, offset, buffer, size, fragment);
+            size += fragment;
+            offset += fragment;
+            length -= fragment;
+            if(size >= buffer.length) queueBuffer();
+        }
+    }
+
+// wait for the writer to finish everything & close the file.
+// Throws the writer's error.
+    public void close() throws IOException
+    {
+        if(closed) return;
+        closed = true;
+        try
+        {
+            queueBuffer();
+        } finally
+        {
+            while(true)
+            {
+                try
+                {
+                    queue.put(END);
+                    break;
+                } catch(InterruptedException e)
+                {
+                }
+            }
+            synchronized(done)
+            {
+                while(!finished)
+                {
+                    try
+                    {
+                        done.wait();
+                    } catch(InterruptedException e)
+                    {
+                    }
+                }
+            }
+            if(buffer != null) WebServer.putBuffer(buffer);
+            buffer = null;
+
+            try
+            {
+                if(error == null)
+                {
+                    if(presized) channel.truncate(total);
+                    if(Stuff.syncUploads != SYNC_NONE) channel.force(true);
+                }
+            } catch(IOException e)
+            {
+                error = e;
+            }
+            file.close();
+        }
+        checkError();
+        Metrics.upload(total, System.nanoTime() - startTime);
+    }
+}
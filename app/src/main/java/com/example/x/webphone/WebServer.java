@@ -23,27 +23,38 @@ package com.example.x.webphone;
 
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.BufferedInputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.Writer;
 import java.lang.reflect.Array;
+import java.lang.reflect.Method;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystemLoopException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Calendar;
@@ -52,10 +63,24 @@ import java.util.Date;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TimeZone;
 import java.util.Vector;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 
 // Started from http://cs.au.dk/~amoeller/WWW/javaweb/server.html
@@ -63,19 +88,36 @@ import java.util.UUID;
 public class WebServer extends Thread
 {
     int TOTAL_THREADS = 20;
-    WebServerThread threads[] = new WebServerThread[TOTAL_THREADS];
+// more ranges than this in 1 request get the whole file
+    static final int MAX_RANGES = 16;
+// connections waiting for a thread in the pool before they're dropped
+    int MAX_QUEUED = 256;
+// runs a WebServerThread for each connection
+    ExecutorService executor;
+    static ListingCache listings = new ListingCache(Stuff.listingCacheSize);
     final String CHECKED = "__CHECKED";
 
     public void run()
     {
+        SearchIndex.start();
+        if(Stuff.useNio)
+        {
+            new NioServer(this).run();
+            return;
+        }
 
         ServerSocket socket = null;
         try {
-            socket = new ServerSocket(Stuff.PORT);
+// open it from a channel so the connections have channels for sendFile
+            socket = ServerSocketChannel.open().socket();
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(Stuff.PORT));
         } catch (IOException e) {
             Stuff.log("WebServer", "run: Could not start web server: " + e);
+            return;
         }
 
+        executor = createExecutor();
         Stuff.log("WebServer", "run: started web server on port " + Stuff.PORT);
 
 
@@ -85,9 +127,9 @@ public class WebServer extends Thread
             try {
                 // wait for request
                 connection = socket.accept();
-                Stuff.log("WebServer", "run: got connection from " +
-                        connection.getInetAddress().toString() +
-                        " IPv4=" + (connection.getInetAddress() instanceof Inet4Address));
+                Logger.debug("WebServer", "run: got connection from {} IPv4={}",
+                        connection.getInetAddress(),
+                        connection.getInetAddress() instanceof Inet4Address);
                 if(connection != null &&
                     (connection.getInetAddress() instanceof Inet4Address)) startConnection(connection);
 
@@ -99,39 +141,57 @@ public class WebServer extends Thread
     }
 
 
-    void startConnection(Socket connection)
+// a virtual thread per connection or a bounded pool
+    ExecutorService createExecutor()
     {
-        WebServerThread thread = null;
-        synchronized(this)
+        if(Stuff.dispatchMode == Stuff.DISPATCH_VIRTUAL)
         {
-            for(int i = 0; i < TOTAL_THREADS; i++)
+// virtual threads need Java 21.  Look them up so it still builds on older JDKs.
+            try
             {
-                if(threads[i] == null)
-                    threads[i] = new WebServerThread();
-
-                if(!threads[i].busy)
-                {
-                    thread = threads[i];
-                    threads[i].startConnection(connection);
-                    break;
-                }
+                Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                Stuff.log("WebServer", "createExecutor: using virtual threads");
+                return (ExecutorService)method.invoke(null);
+            } catch(Exception e)
+            {
+                Stuff.log("WebServer", "createExecutor: no virtual threads " + e);
             }
         }
 
-        if(thread == null)
+// bursts wait in the queue instead of getting dropped
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(TOTAL_THREADS,
+            TOTAL_THREADS,
+            60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(MAX_QUEUED));
+        pool.allowCoreThreadTimeOut(true);
+        Stuff.log("WebServer", "createExecutor: using " + TOTAL_THREADS + " threads");
+        return pool;
+    }
+
+    static boolean isCompressible(String contentType)
+    {
+        return contentType.startsWith("text/") ||
+            contentType.equals("application/javascript") ||
+            contentType.equals("application/json");
+    }
+
+    void startConnection(Socket connection)
+    {
+        try
+        {
+            executor.execute(new WebServerThread(connection));
+        } catch(RejectedExecutionException e)
         {
             Stuff.log("WebServer", "startConnection: out of threads");
+            Metrics.rejected.incrementAndGet();
             try
             {
                 connection.close();
-            } catch(Exception e)
+            } catch(Exception e2)
             {
             }
-            return;
         }
-
-
-
     }
 
 
@@ -155,17 +215,54 @@ public class WebServer extends Thread
     private static void errorReport(PrintStream pout, Socket connection,
                                     String code, String title, String msg)
     {
-        pout.print("HTTP/1.0 " + code + " " + title + "\r\n" +
-                "\r\n" +
-                "<!DOCTYPE HTML PUBLIC \"-//IETF//DTD HTML 2.0//EN\">\r\n" +
+        errorReport(pout, connection, code, title, msg, false);
+    }
+
+// noBody is for HEAD
+    private static void errorReport(PrintStream pout, Socket connection,
+                                    String code, String title, String msg,
+                                    boolean noBody)
+    {
+        String body = "<!DOCTYPE HTML PUBLIC \"-//IETF//DTD HTML 2.0//EN\">\r\n" +
                 "<TITLE>" + code + " " + title + "</TITLE>\r\n" +
                 "</HEAD><BODY>\r\n" +
                 "<H1>" + title + "</H1>\r\n" + msg + "<P>\r\n" +
                 "<HR><ADDRESS>Webphone at " + getTheURL(connection) + "</ADDRESS>\r\n" +
-                "</BODY></HTML>\r\n");
+                "</BODY></HTML>\r\n";
+// the length lets a kept alive connection continue after the error
+        pout.print("HTTP/1.1 " + code + " " + title + "\r\n" +
+                "Content-Type: text/html\r\n" +
+                "Content-Length: " + body.getBytes().length + "\r\n" +
+                "\r\n" +
+                (noBody ? "" : body));
         log(connection, code + " " + title);
     }
 
+// date in the format used by HTTP headers
+    static SimpleDateFormat httpDateFormat()
+    {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    static String httpDate(long date)
+    {
+        return httpDateFormat().format(new Date(date));
+    }
+
+// returns -1 if it's not a date
+    static long parseHttpDate(String text)
+    {
+        try
+        {
+            return httpDateFormat().parse(text).getTime();
+        } catch(ParseException e)
+        {
+            return -1;
+        }
+    }
+
     private static String guessContentType(String path)
     {
         if (path.endsWith(".class"))
@@ -192,37 +289,41 @@ public class WebServer extends Thread
             return "text/plain";
     }
 
-    void sendHeader(PrintStream pout, String contentType, long size)
+
+// copy buffers for when sendFile can't use the socket channel
+    static ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+    static final int BUFFER_SIZE = 65536;
+
+    static byte[] getBuffer()
     {
-        pout.print("HTTP/1.0 200 OK\r\n" +
-                "Content-Type: " + contentType + "\r\n");
-        if(size > 0)
-            pout.print("Content-Length: " + size + "\r\n");
-        pout.print("Date: " + new Date() + "\r\n" +
-                "Server: WebPhone\r\n\r\n");
+        byte[] buffer = buffers.poll();
+        if(buffer == null) buffer = new byte[BUFFER_SIZE];
+        return buffer;
     }
 
-
-    private static void sendFile(InputStream file, OutputStream out)
+    static void putBuffer(byte[] buffer)
     {
-        try {
-            byte[] buffer = new byte[65536];
-            while (file.available() > 0)
-                out.write(buffer, 0, file.read(buffer));
-        } catch (IOException e)
-        {
-            Stuff.log("WebServer", "sendFile " + e);
-        }
+        buffers.add(buffer);
     }
 
 
-    class SortByName implements Comparator<DirEntry>
+// The comparators take the order when they're made, so changing the
+// order in another request can't break a sort in progress.  They only
+// look at fields DirEntry already has, so a compare allocates nothing.
+    static class SortByName implements Comparator<DirEntry>
     {
-        // Used for sorting in ascending order of
-        // roll number
+        boolean descending;
+        boolean natural;
+
+        SortByName(boolean descending, boolean natural)
+        {
+            this.descending = descending;
+            this.natural = natural;
+        }
+
         public int compare(DirEntry a, DirEntry b) {
-            int result = a.name.toLowerCase().compareTo(b.name.toLowerCase());
-            if (!Stuff.sortDescending) {
+            int result = compareNames(a, b, natural);
+            if (!descending) {
                 return result;
             } else
             {
@@ -231,265 +332,873 @@ public class WebServer extends Thread
         }
     }
 
-    class SortBySize implements Comparator<DirEntry>
+    static class SortBySize implements Comparator<DirEntry>
     {
-        // Used for sorting in ascending order of
-        // roll number
+        boolean descending;
+        boolean natural;
+
+        SortBySize(boolean descending, boolean natural)
+        {
+            this.descending = descending;
+            this.natural = natural;
+        }
+
         public int compare(DirEntry a, DirEntry b)
         {
-            if(Stuff.sortDescending)
-            {
-                if(a.size < b.size)
-                {
-                    return 1;
-                }
-                else
-                {
-                    return -1;
-                }
-            }
+            int result = a.size < b.size ? -1 : (a.size > b.size ? 1 : 0);
+// same size goes by name so a page cursor always lands in the same place
+            if(result == 0) result = compareNames(a, b, natural);
+            if(descending)
+                return -result;
             else
-            {
-                if(b.size < a.size)
-                {
-                    return 1;
-                }
-                else
-                {
-                    return -1;
-                }
-            }
+                return result;
         }
     }
 
 
-    class SortByDate implements Comparator<DirEntry>
+    static class SortByDate implements Comparator<DirEntry>
+    {
+        boolean descending;
+        boolean natural;
+
+        SortByDate(boolean descending, boolean natural)
+        {
+            this.descending = descending;
+            this.natural = natural;
+        }
+
+        public int compare(DirEntry a, DirEntry b)
+        {
+            int result = a.date < b.date ? -1 : (a.date > b.date ? 1 : 0);
+            if(result == 0) result = compareNames(a, b, natural);
+            if(descending)
+                return -result;
+            else
+                return result;
+        }
+    }
+
+    static class SortByTotal implements Comparator<DirEntry>
     {
-        // Used for sorting in ascending order of
-        // roll number
+        boolean descending;
+        boolean natural;
+
+        SortByTotal(boolean descending, boolean natural)
+        {
+            this.descending = descending;
+            this.natural = natural;
+        }
+
         public int compare(DirEntry a, DirEntry b)
         {
-            if(Stuff.sortDescending)
+            long totalA = a.getTotalSize();
+            long totalB = b.getTotalSize();
+            int result = totalA < totalB ? -1 : (totalA > totalB ? 1 : 0);
+            if(result == 0) result = compareNames(a, b, natural);
+            if(descending)
+                return -result;
+            else
+                return result;
+        }
+    }
+
+// ignore case but never call 2 different names equal
+    static int compareNames(DirEntry a, DirEntry b, boolean natural)
+    {
+        int result;
+        if(natural)
+            result = compareNatural(a.sortName, b.sortName);
+        else
+            result = a.sortName.compareTo(b.sortName);
+        if(result == 0) result = a.name.compareTo(b.name);
+        return result;
+    }
+
+// compare runs of digits by their value so file9 comes before file10
+// & version 1.9 comes before 1.10
+    static int compareNatural(String a, String b)
+    {
+        int i = 0;
+        int j = 0;
+        int lengthA = a.length();
+        int lengthB = b.length();
+        while(i < lengthA && j < lengthB)
+        {
+            char c = a.charAt(i);
+            char d = b.charAt(j);
+            if(isDigit(c) && isDigit(d))
             {
-                if(a.date < b.date)
-                {
-                    return 1;
-                }
-                else
+// skip leading 0's
+                while(i < lengthA && a.charAt(i) == '0') i++;
+                while(j < lengthB && b.charAt(j) == '0') j++;
+                int startA = i;
+                int startB = j;
+                while(i < lengthA && isDigit(a.charAt(i))) i++;
+                while(j < lengthB && isDigit(b.charAt(j))) j++;
+// the longer number is bigger
+                if(i - startA != j - startB) return (i - startA) - (j - startB);
+                for(int k = 0; k < i - startA; k++)
                 {
-                    return -1;
+                    int result = a.charAt(startA + k) - b.charAt(startB + k);
+                    if(result != 0) return result;
                 }
             }
             else
             {
-                if(b.date < a.date)
-                {
-                    return 1;
-                }
-                else
-                {
-                    return -1;
-                }
+                if(c != d) return c - d;
+                i++;
+                j++;
             }
         }
+        if(i < lengthA) return 1;
+        if(j < lengthB) return -1;
+// same numbers with different 0's
+        return a.compareTo(b);
     }
 
-    public static boolean isSymlink(String path)
+    static boolean isDigit(char c)
     {
-        File file = new File(path);
-        try {
-            File canon;
-            if (file.getParent() == null) {
-                canon = file;
-            } else {
-                File canonDir = file.getParentFile().getCanonicalFile();
-                canon = new File(canonDir, file.getName());
-            }
-            return !canon.getCanonicalFile().equals(canon.getAbsoluteFile());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        return c >= '0' && c <= '9';
+    }
 
-        return false;
+    static Comparator<DirEntry> getComparator()
+    {
+        boolean descending = Stuff.sortDescending;
+        switch (Stuff.sortOrder) {
+            case Stuff.SORT_SIZE:
+                return new SortBySize(descending, Stuff.naturalSort);
+            case Stuff.SORT_DATE:
+                return new SortByDate(descending, Stuff.naturalSort);
+            case Stuff.SORT_TOTAL:
+                return new SortByTotal(descending, Stuff.naturalSort);
+            default:
+            case Stuff.SORT_PATH:
+                return new SortByName(descending, Stuff.naturalSort);
+        }
     }
 
-    public class WebServerThread extends Thread
+// gzip with a compression level
+    static class GzipStream extends GZIPOutputStream
     {
+        GzipStream(OutputStream out, int level) throws IOException
+        {
+            super(out, 8192, true);
+            def.setLevel(level);
+        }
+    }
 
-        boolean busy = false;
-        Socket connection;
-        Semaphore lock = new Semaphore(0);
+// response body.  Passes bytes through until the header asks for chunks
+// or compression.
+    static class ResponseStream extends OutputStream
+    {
+        OutputStream out;
+        boolean chunked = false;
+        byte[] buffer;
+        int size = 0;
+// bytes of header & body written
+        long total = 0;
+// the response code from the status line for the metrics
+        int status = 0;
+// compresses the body before it's chunked
+        OutputStream encoder;
+        Deflater deflater;
+
+        ResponseStream(OutputStream out)
+        {
+            this.out = out;
+        }
 
-        public WebServerThread()
+        void startChunks()
         {
-            start();
+            chunked = true;
+            if(buffer == null) buffer = new byte[8192];
         }
 
-        public void startConnection(Socket connection)
+// the compressed bytes go to writeRaw
+        class RawStream extends OutputStream
         {
-            this.connection = connection;
-            busy = true;
-            lock.release();
+            public void write(int b) throws IOException
+            {
+                writeRaw(b);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                writeRaw(b, off, len);
+            }
         }
 
-        // read the input stream
-        // returns -1 at the EOF
-        int readChar(BufferedInputStream in)
+// encoding is gzip or deflate
+        void startEncoding(String encoding, int level) throws IOException
         {
-            int result = -1;
-            try
+            if(encoding.equals("gzip"))
             {
-                result = in.read();
+                encoder = new GzipStream(new RawStream(), level);
             }
-            catch(IOException e)
+            else
             {
+                deflater = new Deflater(level);
+                encoder = new DeflaterOutputStream(new RawStream(), deflater, 8192, true);
             }
+        }
 
-            return result;
+        boolean isEncoding()
+        {
+            return encoder != null;
         }
 
-        // read the input stream until the next newline
-        String readLine(BufferedInputStream in)
+        public void write(int b) throws IOException
         {
-            StringBuilder result = new StringBuilder();
-//            int total_read = 0;
+            if(encoder != null)
+                encoder.write(b);
+            else
+                writeRaw(b);
+        }
 
-            while(true)
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if(encoder != null)
+                encoder.write(b, off, len);
+            else
+                writeRaw(b, off, len);
+        }
+
+// pick the digits out of "HTTP/1.1 200"
+        void getStatus(long position, int b)
+        {
+            if(position >= 9 && b >= '0' && b <= '9')
+                status = status * 10 + b - '0';
+        }
+
+        void writeRaw(int b) throws IOException
+        {
+            if(total < 12) getStatus(total, b);
+            total++;
+            if(!chunked)
+            {
+                out.write(b);
+                return;
+            }
+            if(size >= buffer.length) flushChunk();
+            buffer[size++] = (byte)b;
+        }
+
+        void writeRaw(byte[] b, int off, int len) throws IOException
+        {
+            for(int i = 0; i < len && total + i < 12; i++)
+                getStatus(total + i, b[off + i]);
+            total += len;
+            if(!chunked)
             {
-                int c = readChar(in);
-//                total_read += 1;
+                out.write(b, off, len);
+                return;
+            }
 
-                if(c < 0)
-                {
-                    Stuff.log("WebServerThread", "readLine c=" + c);
-                    break;
-                }
-                if(c == '\n')
+// collect small prints into bigger chunks
+            if(size + len > buffer.length)
+            {
+                flushChunk();
+                if(len >= buffer.length)
                 {
-                    result.append((char) c);
-                    break;
-                }
-// strip \r
-                if(c != '\r') {
-                    result.append((char) c);
+                    writeChunk(b, off, len);
+                    return;
                 }
             }
-
-//            Stuff.log("WebServerThread", "readLine total_read=" + total_read);
-            return result.toString();
+            System.arraycopy(b, off, buffer, size, len);
+            size += len;
         }
 
+        void writeChunk(byte[] b, int off, int len) throws IOException
+        {
+            if(len == 0) return;
+            out.write((Integer.toHexString(len) + "\r\n").getBytes());
+            out.write(b, off, len);
+            out.write('\r');
+            out.write('\n');
+        }
 
-        boolean gotEOF = false;
-        byte[] readUntil(String text, BufferedInputStream in, boolean testEOF)
+        void flushChunk() throws IOException
         {
-            byte[] textBytes = text.getBytes();
-            byte[] endBuf = new byte[text.length() + 4];
-            gotEOF = false;
+            writeChunk(buffer, 0, size);
+            size = 0;
+        }
 
+        public void flush() throws IOException
+        {
+            if(encoder != null) encoder.flush();
+            if(chunked) flushChunk();
+            out.flush();
+        }
 
+// write the end of the compressed data & the last chunk
+        void finish() throws IOException
+        {
+            if(encoder != null)
+            {
+                encoder.close();
+                if(deflater != null) deflater.end();
+                encoder = null;
+                deflater = null;
+            }
 
-            // fudge the terminating sequence with extra bytes that tend to occur after the file but may
-            // not be standardized
-            endBuf[0] = '\r';
-            endBuf[1] = '\n';
-            endBuf[2] = '-';
-            endBuf[3] = '-';
-            System.arraycopy(textBytes, 0, endBuf, 4, textBytes.length);
+            if(chunked)
+            {
+                flushChunk();
+                out.write("0\r\n\r\n".getBytes());
+                chunked = false;
+            }
+        }
+    }
 
-//            for(int i = 0; i < endBuf.length; i++)
-//            {
-//                Stuff.log("x", "WebServerThread.readUntil 1 " + endBuf[i]);
-//            }
-            byte[] result = new byte[1024];
-            int offset = 0;
+// request body with a Content-Length.  Stops at the end of the body so the
+// next request on the connection isn't eaten.
+    static class BodyInputStream extends InputStream
+    {
+        InputStream in;
+        long remaining;
 
-// read until the terminating sequence
-            while(true)
-            {
-                int nextChar = readChar(in);
-//                Stuff.log("x", "WebServerThread.readUntil 1 " + nextChar);
-                if(nextChar < 0)
-                {
-                    break;
-                }
+        BodyInputStream(InputStream in, long length)
+        {
+            this.in = in;
+            this.remaining = length;
+        }
 
-// expand the array
-                if(offset >= result.length)
-                {
-                    byte[] result2 = new byte[result.length * 2];
-                    System.arraycopy(result, 0, result2, 0, result.length);
-                    result = result2;
-                }
+        public int read() throws IOException
+        {
+            if(remaining <= 0) return -1;
+            int result = in.read();
+            if(result >= 0) remaining--;
+            return result;
+        }
 
-                result[offset++] = (byte)nextChar;
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if(remaining <= 0) return -1;
+            if(len > remaining) len = (int)remaining;
+            int result = in.read(b, off, len);
+            if(result > 0) remaining -= result;
+            return result;
+        }
 
-                if(offset >= endBuf.length) {
-                    boolean gotIt = true;
-                    int fileEnd = offset - endBuf.length;
-                    for (int i = 0; i < endBuf.length; i++) {
-                        if (result[fileEnd + i] != endBuf[i]) {
-                            gotIt = false;
-                            break;
-                        }
-                    }
+        public int available() throws IOException
+        {
+            return (int)Math.min(in.available(), remaining);
+        }
 
-// truncate the result & return it
-                    if(gotIt)
-                    {
-                        byte[] result2 = new byte[fileEnd];
-                        System.arraycopy(result, 0, result2, 0, fileEnd);
-//                        Stuff.log("x", "WebServerThread.readUntil 2");
-
-// read 2 more characters to test for an EOF.  They'll be \r\n or --
-                        if(testEOF) {
-                            nextChar = readChar(in);
-                            if (nextChar == '-') {
-                                nextChar = readChar(in);
-                                if (nextChar == '-') {
-                                    gotEOF = true;
-                                }
-                            }
-                        }
-                        return result2;
-                    }
-                }
+// skip whatever the handler didn't read
+        void drain() throws IOException
+        {
+            byte[] buffer = new byte[8192];
+            while(read(buffer, 0, buffer.length) >= 0)
+            {
             }
+        }
 
-            return null;
+// false if the connection ended before the body
+        boolean isComplete()
+        {
+            return remaining <= 0;
         }
+    }
 
+// a body in chunked transfer encoding.  remaining is what's left of the
+// current chunk.
+    static class ChunkedInputStream extends BodyInputStream
+    {
+// the current chunk's data is followed by \r\n
+        boolean inChunk = false;
+        boolean done = false;
 
-        public String sortButton(int field, String path)
+        ChunkedInputStream(InputStream in)
         {
-            final String[] sortText = 
-            {
-                "path", "PATH", 
-                "size", "SIZE", 
-                "date", "DATE" 
-            };
-            String result = "<TD><B>";
-            String directionText;
-            if(Stuff.sortOrder == field)
+            super(in, 0);
+        }
+
+// the chunk sizes & trailers
+        String readLine() throws IOException
+        {
+            StringBuilder result = new StringBuilder();
+            while(true)
             {
-                if(Stuff.sortDescending) 
-                    directionText = "_0";
-                else
-                    directionText = "_1";
+                int c = in.read();
+                if(c < 0) throw new IOException("EOF in chunk header");
+                if(c == '\n') break;
+                if(c != '\r') result.append((char)c);
+                if(result.length() > 4096) throw new IOException("chunk header too long");
             }
-            else
+            return result.toString();
+        }
+
+// start the next chunk.  Returns false at the end of the body.
+        boolean nextChunk() throws IOException
+        {
+            if(done) return false;
+            if(inChunk) readLine();
+            String line = readLine();
+            int semicolon = line.indexOf(';');
+            if(semicolon >= 0) line = line.substring(0, semicolon);
+            long size;
+            try
             {
-                if(Stuff.sortDescending) 
-                    directionText = "_1";
-                else
-                    directionText = "_0";
+                size = Long.parseLong(line.trim(), 16);
+            } catch(NumberFormatException e)
+            {
+                throw new IOException("bad chunk size " + line);
             }
-            result += "<A HREF=\"" + path + 
-                "?sort_" + field + 
-                directionText + "\">";
-            if(Stuff.sortOrder == field)
+
+            if(size == 0)
             {
-                result += sortText[field * 2 + 1];
+// skip the trailers
+                while(readLine().length() > 0)
+                {
+                }
+                done = true;
+                inChunk = false;
+                return false;
+            }
+            remaining = size;
+            inChunk = true;
+            return true;
+        }
+
+        public int read() throws IOException
+        {
+            if(remaining <= 0 && !nextChunk()) return -1;
+            return super.read();
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if(remaining <= 0 && !nextChunk()) return -1;
+            return super.read(b, off, len);
+        }
+
+        public int available() throws IOException
+        {
+            if(remaining <= 0) return 0;
+            return super.available();
+        }
+
+        boolean isComplete()
+        {
+            return done;
+        }
+    }
+
+    public static boolean isSymlink(String path)
+    {
+        File file = new File(path);
+        try {
+            File canon;
+            if (file.getParent() == null) {
+                canon = file;
+            } else {
+                File canonDir = file.getParentFile().getCanonicalFile();
+                canon = new File(canonDir, file.getName());
+            }
+            return !canon.getCanonicalFile().equals(canon.getAbsoluteFile());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return false;
+    }
+
+// handles 1 connection.  Run by the executor or called by the NIO server.
+    public class WebServerThread implements Runnable
+    {
+
+        Socket connection;
+// the request being handled
+        HttpRequest request = new HttpRequest();
+// the decoded query string
+        Map<String, String> query = new HashMap<>();
+        String method;
+        ResponseStream response;
+        boolean http11;
+        boolean keepAlive;
+// what the request did for the metrics.  GET requests are named by sendFiles.
+        String route;
+// when a blocking write to the client started, 0 if not writing.
+// NioServer drops connections which stay in a write too long.
+        volatile long writing = 0;
+
+        public WebServerThread(Socket connection)
+        {
+            this.connection = connection;
+        }
+
+// most bytes sent by 1 transferTo
+        static final long TRANSFER_SIZE = 0x40000;
+
+// send size bytes of the file starting at offset.  Goes straight from the
+// file to the socket if possible.  Returns false if the connection failed.
+        boolean sendFile(FileInputStream file, OutputStream out, long offset, long size)
+        {
+            FileChannel src = file.getChannel();
+            SocketChannel dst = connection.getChannel();
+            long start = offset;
+            long end = offset + size;
+            if(dst != null && Stuff.zeroCopy && !response.isEncoding())
+            {
+                try
+                {
+// the header has to go out before the channel is written
+                    out.flush();
+                    while(offset < end)
+                    {
+// small pieces so a stalled client shows up as a stalled write
+                        writing = System.currentTimeMillis();
+                        long result;
+                        try
+                        {
+                            result = src.transferTo(offset, 
+                                Math.min(end - offset, TRANSFER_SIZE), 
+                                dst);
+                        } finally
+                        {
+                            writing = 0;
+                        }
+// the file got shorter
+                        if(result <= 0) break;
+                        offset += result;
+                        response.total += result;
+                    }
+                    return true;
+                } catch(IOException e)
+                {
+                    Stuff.log("WebServerThread", "sendFile transferTo " + e);
+// can't fall back after some of the file was sent
+                    if(offset > start) return false;
+                }
+            }
+
+            byte[] buffer = getBuffer();
+            try
+            {
+                src.position(offset);
+                while(offset < end)
+                {
+                    int result = file.read(buffer, 0, (int)Math.min(buffer.length, end - offset));
+                    if(result < 0) break;
+                    out.write(buffer, 0, result);
+                    offset += result;
+                }
+            } catch (IOException e)
+            {
+                Stuff.log("WebServerThread", "sendFile " + e);
+                return false;
+            } finally
+            {
+                putBuffer(buffer);
+            }
+            return true;
+        }
+
+        void sendHeader(PrintStream pout, String contentType, long size)
+        {
+            sendHeader(pout, "200 OK", contentType, size, "");
+        }
+
+// extra is more header lines, each ending in \r\n
+        void sendHeader(PrintStream pout, 
+            String status, 
+            String contentType, 
+            long size, 
+            String extra)
+        {
+// HTTP/1.0 can't take chunks, so the end of the response is the end of the connection
+            boolean noBody = status.startsWith("304") || 
+                status.startsWith("204") || 
+                method.equals("HEAD");
+            boolean chunked = size < 0 && http11 && !noBody;
+            if(size < 0 && !http11 && !noBody) keepAlive = false;
+
+            pout.print("HTTP/1.1 " + status + "\r\n" +
+                    "Content-Type: " + contentType + "\r\n" +
+                    extra);
+// HEAD gets the length a GET would
+            if(size >= 0 && (!noBody || method.equals("HEAD")))
+                pout.print("Content-Length: " + size + "\r\n");
+            if(chunked)
+                pout.print("Transfer-Encoding: chunked\r\n");
+            if(keepAlive)
+                pout.print("Connection: keep-alive\r\n" +
+                    "Keep-Alive: timeout=" + (Stuff.keepAliveTimeout / 1000) +
+                    ", max=" + Stuff.maxRequests + "\r\n");
+            else
+                pout.print("Connection: close\r\n");
+            pout.print("Date: " + httpDate(System.currentTimeMillis()) + "\r\n" +
+                    "Server: WebPhone\r\n\r\n");
+            if(chunked) response.startChunks();
+        }
+
+// pick gzip or deflate from Accept-Encoding.  Returns null to send it as is.
+// size is -1 if it's not known.
+        String chooseEncoding(String contentType, long size)
+        {
+            String accept = request.acceptEncoding;
+            if(!Stuff.compress || 
+                accept == null || 
+                !isCompressible(contentType) ||
+                (size >= 0 && size < Stuff.compressMin)) return null;
+
+            boolean gzip = false;
+            boolean deflate = false;
+            String[] codings = accept.split(",");
+            for(int i = 0; i < codings.length; i++)
+            {
+                String[] parts = codings[i].split(";");
+                String name = parts[0].trim().toLowerCase();
+// q=0 means not acceptable
+                if(parts.length > 1 && parts[1].trim().matches("q=0(\\.0*)?")) continue;
+                if(name.equals("gzip")) gzip = true;
+                else
+                if(name.equals("deflate")) deflate = true;
+            }
+
+            if(gzip) return "gzip";
+            if(deflate) return "deflate";
+            return null;
+        }
+
+// a gzipped copy of the file, made once & reused until the file changes.
+// Uses file.gz next to it if that's newer.  Returns null if it can't be made.
+// Copies are named after the path so a new one replaces the old one.
+        File getPrecompressed(File file)
+        {
+            File sibling = new File(file.getPath() + ".gz");
+            if(sibling.isFile() && sibling.lastModified() >= file.lastModified())
+                return sibling;
+            if(file.length() > Stuff.precompressMax) return null;
+
+            File dir = new File(Stuff.cache_dir, "gzip");
+            final String prefix = UUID.nameUUIDFromBytes(file.getPath().getBytes()).toString() + "-";
+            String key = prefix + Long.toHexString(file.length()) + 
+                "-" + Long.toHexString(file.lastModified());
+            File cached = new File(dir, key + ".gz");
+            if(cached.isFile()) return cached;
+
+            dir.mkdirs();
+            File temp = new File(dir, key + ".temp" + UUID.randomUUID());
+            byte[] buffer = getBuffer();
+            try
+            {
+                FileInputStream in = new FileInputStream(file);
+                OutputStream out = new GzipStream(new FileOutputStream(temp), Stuff.compressLevel);
+                while(true)
+                {
+                    int result = in.read(buffer);
+                    if(result < 0) break;
+                    out.write(buffer, 0, result);
+                }
+                in.close();
+                out.close();
+            } catch(IOException e)
+            {
+                Stuff.log("WebServerThread", "getPrecompressed " + e);
+                temp.delete();
+                return null;
+            } finally
+            {
+                putBuffer(buffer);
+            }
+
+            if(!temp.renameTo(cached))
+            {
+                temp.delete();
+                return null;
+            }
+
+// forget older versions of the file
+            File[] old = dir.listFiles(new FilenameFilter()
+            {
+                public boolean accept(File dir, String name)
+                {
+                    return name.startsWith(prefix) && name.endsWith(".gz");
+                }
+            });
+            if(old != null)
+                for(int i = 0; i < old.length; i++)
+                    if(!old[i].equals(cached)) old[i].delete();
+            return cached;
+        }
+
+// true if the client's copy is current.  If-None-Match overrides If-Modified-Since.
+        boolean notModified(String etag, long date)
+        {
+            if(!method.equals("GET") && !method.equals("HEAD")) return false;
+
+            String ifNoneMatch = request.ifNoneMatch;
+            if(ifNoneMatch != null)
+            {
+// weak comparison
+                String bareTag = etag.startsWith("W/") ? etag.substring(2) : etag;
+                String[] tags = ifNoneMatch.split(",");
+                for(int i = 0; i < tags.length; i++)
+                {
+                    String tag = tags[i].trim();
+                    if(tag.startsWith("W/")) tag = tag.substring(2);
+                    if(tag.equals("*") || tag.equals(bareTag)) return true;
+                }
+                return false;
+            }
+
+            String ifModifiedSince = request.get("if-modified-since");
+            if(ifModifiedSince != null && date > 0)
+            {
+                long since = parseHttpDate(ifModifiedSince);
+// HTTP dates only have seconds
+                return since >= 0 && date / 1000 <= since / 1000;
+            }
+            return false;
+        }
+
+// parse a Range header into inclusive start, end pairs.
+// Returns null to send the whole file or an empty vector if none of the
+// ranges are in the file.
+        Vector<long[]> getRanges(String text, long size)
+        {
+            if(text == null || !text.startsWith("bytes=")) return null;
+
+            Vector<long[]> result = new Vector<long[]>();
+            String[] specs = text.substring(6).split(",");
+            if(specs.length > MAX_RANGES) return null;
+            for(int i = 0; i < specs.length; i++)
+            {
+                String spec = specs[i].trim();
+                int dash = spec.indexOf('-');
+                if(dash < 0) return null;
+
+                long start;
+                long end;
+                try
+                {
+                    if(dash == 0)
+                    {
+// the last N bytes
+                        long length = Long.parseLong(spec.substring(1));
+                        if(length <= 0) continue;
+                        start = Math.max(0, size - length);
+                        end = size - 1;
+                    }
+                    else
+                    {
+                        start = Long.parseLong(spec.substring(0, dash));
+                        String endText = spec.substring(dash + 1);
+                        if(endText.length() == 0)
+                            end = size - 1;
+                        else
+                            end = Math.min(Long.parseLong(endText), size - 1);
+                        if(end < start && start < size) return null;
+                    }
+                } catch(NumberFormatException e)
+                {
+                    return null;
+                }
+
+                if(start >= size) continue;
+                result.add(new long[] { start, end });
+            }
+            return result;
+        }
+
+// send parts of a file as a 206
+        boolean sendRanges(PrintStream pout,
+            OutputStream out,
+            FileInputStream file,
+            String contentType,
+            long size,
+            Vector<long[]> ranges,
+            String extra)
+        {
+            if(ranges.size() == 0)
+            {
+                sendHeader(pout, 
+                    "416 Range Not Satisfiable", 
+                    contentType, 
+                    0, 
+                    "Content-Range: bytes */" + size + "\r\n" + extra);
+                return true;
+            }
+
+            if(ranges.size() == 1)
+            {
+                long[] range = ranges.get(0);
+                sendHeader(pout, 
+                    "206 Partial Content", 
+                    contentType, 
+                    range[1] - range[0] + 1,
+                    "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + size + "\r\n" +
+                        extra);
+                if(method.equals("HEAD")) return true;
+                return sendFile(file, out, range[0], range[1] - range[0] + 1);
+            }
+
+// multiple ranges go in a multipart/byteranges.  Add up the length first so
+// the connection can be kept alive.
+            String boundary = UUID.randomUUID().toString();
+            String[] partHeaders = new String[ranges.size()];
+            String trailer = "\r\n--" + boundary + "--\r\n";
+            long total = trailer.length();
+            for(int i = 0; i < ranges.size(); i++)
+            {
+                long[] range = ranges.get(i);
+                partHeaders[i] = "\r\n--" + boundary + "\r\n" +
+                    "Content-Type: " + contentType + "\r\n" +
+                    "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + size + "\r\n" +
+                    "\r\n";
+                total += partHeaders[i].length() + range[1] - range[0] + 1;
+            }
+
+            sendHeader(pout, 
+                "206 Partial Content", 
+                "multipart/byteranges; boundary=" + boundary, 
+                total, 
+                extra);
+            if(method.equals("HEAD")) return true;
+            for(int i = 0; i < ranges.size(); i++)
+            {
+                long[] range = ranges.get(i);
+                pout.print(partHeaders[i]);
+                if(!sendFile(file, out, range[0], range[1] - range[0] + 1))
+                    return false;
+            }
+            pout.print(trailer);
+            return true;
+        }
+
+        public String sortButton(int field, String path)
+        {
+            final String[] sortText = 
+            {
+                "path", "PATH", 
+                "size", "SIZE", 
+                "date", "DATE", 
+                "total", "TOTAL" 
+            };
+            String result = "<TD><B>";
+            String directionText;
+            if(Stuff.sortOrder == field)
+            {
+                if(Stuff.sortDescending) 
+                    directionText = "_0";
+                else
+                    directionText = "_1";
+            }
+            else
+            {
+                if(Stuff.sortDescending) 
+                    directionText = "_1";
+                else
+                    directionText = "_0";
+            }
+            result += "<A HREF=\"" + path + 
+                "?sort_" + field + 
+                directionText + "\">";
+            if(Stuff.sortOrder == field)
+            {
+                result += sortText[field * 2 + 1];
                 if(Stuff.sortDescending)
                     result += "&#8593;";
                 else
@@ -586,47 +1295,262 @@ public class WebServer extends Thread
 
 
 
+// the directory listing for scripts.  Takes the same after= cursor as the
+// HTML pages, limit= for the page size & order=none to skip sorting.
+        void sendJsonListing(String decodedPath, File f, OutputStream out) 
+            throws IOException
+        {
+            PrintStream pout = new PrintStream(out);
+            if(!f.canRead())
+            {
+                errorReport(pout, connection, "404", "Not Found",
+                    "Couldn't access that directory.", method.equals("HEAD"));
+                return;
+            }
+
+            String cursor = query.get("after");
+            if(cursor != null && cursor.length() == 0) cursor = null;
+            boolean sorted = !"none".equals(query.get("order"));
+            int limit = Integer.MAX_VALUE;
+            try
+            {
+                if(query.get("limit") != null) 
+                    limit = Integer.parseInt(query.get("limit"));
+            } catch(NumberFormatException e)
+            {
+            }
+
+            long dirDate = f.lastModified();
+            String etag = "W/\"" + Long.toHexString(dirDate) + 
+                "-" + Stuff.sortOrder + 
+                "-" + (Stuff.sortDescending ? 1 : 0) + 
+                "-j" + Integer.toHexString((cursor + ":" + limit + ":" + sorted).hashCode()) + 
+                "\"";
+            String validators = "ETag: " + etag + "\r\n" +
+                "Last-Modified: " + httpDate(dirDate) + "\r\n" +
+                "Cache-Control: no-cache\r\n" +
+                "Vary: Accept-Encoding\r\n";
+            if(dirDate > 0 && notModified(etag, dirDate))
+            {
+                sendHeader(pout, "304 Not Modified", "application/json", 0, validators);
+                pout.flush();
+                return;
+            }
+
+            String encoding = chooseEncoding("application/json", -1);
+            if(encoding != null) 
+                validators += "Content-Encoding: " + encoding + "\r\n";
+            sendHeader(pout, "200 OK", "application/json", -1, validators);
+            pout.flush();
+            if(method.equals("HEAD")) return;
+            if(encoding != null) response.startEncoding(encoding, Stuff.compressLevel);
+
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 8192);
+            JsonListing listing = new JsonListing(writer);
+            listing.start(decodedPath);
+            if(!sorted)
+            {
+// entries go out as they're read
+                DirScanner.scan(decodedPath, listing);
+                listing.finish(listing.count, null);
+                return;
+            }
+
+            DirEntry cursorEntry = null;
+            if(cursor != null) cursorEntry = ListingPage.parseCursor(cursor);
+            ListingPage page = new ListingPage(getComparator(), cursorEntry, false, limit);
+            DirScanner.scan(decodedPath, page);
+            page.finish();
+            for(int i = 0; i < page.entries.length; i++)
+                listing.visit(page.entries[i]);
+            String next = null;
+            if(page.hasNext && page.entries.length > 0)
+                next = ListingPage.getCursor(page.entries[page.entries.length - 1], Stuff.sortOrder);
+            listing.finish(page.total, next);
+        }
+
+// the FIRST PREV NEXT LAST links under a listing
+        String pageLinks(String path, ListingPage page) throws IOException
+        {
+            String result = "Showing " + (page.first + 1) + 
+                "-" + (page.first + page.entries.length) + 
+                " of " + page.total + "<BR>\r\n";
+            if(page.hasPrev)
+            {
+                result += "<A HREF=\"" + path + "\"><B>FIRST</B></A> | ";
+                if(page.entries.length > 0)
+                    result += "<A HREF=\"" + path + "?before=" + 
+                        URLEncoder.encode(ListingPage.getCursor(page.entries[0], Stuff.sortOrder), "UTF-8") + 
+                        "\"><B>PREV</B></A>";
+            }
+            else
+                result += "<B>FIRST</B> | <B>PREV</B>";
+
+            if(page.hasNext)
+            {
+                if(page.entries.length > 0)
+                    result += " | <A HREF=\"" + path + "?after=" + 
+                        URLEncoder.encode(ListingPage.getCursor(page.entries[page.entries.length - 1], 
+                            Stuff.sortOrder), "UTF-8") + 
+                        "\"><B>NEXT</B></A>";
+                result += " | <A HREF=\"" + path + "?before=\"><B>LAST</B></A>";
+            }
+            else
+                result += " | <B>NEXT</B> | <B>LAST</B>";
+            return result + "<BR>\r\n";
+        }
+
+
 // send the big directory listing or a single file
         public void sendFiles(String path, OutputStream out)
         {
             try
             {
                 PrintStream pout = new PrintStream(out);
+// HEAD stops after the header
+                boolean head = method.equals("HEAD");
                 String decodedPath = URLDecoder.decode(path, StandardCharsets.UTF_8.toString());
-                Stuff.log("WebServerThread", "sendFiles 1 path=" + path + 
-                    " decodedPath=" + decodedPath);
+                Logger.debug("WebServerThread", "sendFiles 1 path={} decodedPath={}", 
+                    path, 
+                    decodedPath);
                 File f = new File(decodedPath);
-                if (f.isDirectory())
+                boolean isDir = f.isDirectory();
+                if(route == null)
+                {
+                    if(!isDir)
+                        route = "get_file";
+                    else
+                    if(query.get("archive") != null)
+                        route = "get_archive";
+                    else
+                    if("json".equals(query.get("format")))
+                        route = "get_json";
+                    else
+                        route = "get_listing";
+                }
+
+                if (isDir)
                 {
                     // send the directory listing
-                    Stuff.log("WebServerThread", "sendFiles 2 isDirectory CanonicalPath=" + f.getCanonicalPath());
+                    if(Logger.isDebug())
+                        Logger.debug("WebServerThread", "sendFiles 2 isDirectory CanonicalPath={}", 
+                            f.getCanonicalPath());
+
+                    if("json".equals(query.get("format")))
+                    {
+                        sendJsonListing(decodedPath, f, out);
+                        return;
+                    }
+
+                    if(query.get("archive") != null)
+                    {
+                        sendArchive(path, null, query.get("archive"));
+                        return;
+                    }
+
+// the page to show.  An empty before= is the last page.
+                    String cursor = query.get("after");
+                    boolean backward = false;
+                    if(cursor == null)
+                    {
+                        cursor = query.get("before");
+                        backward = cursor != null;
+                    }
+                    if(cursor != null && cursor.length() == 0) cursor = null;
+                    String page = "";
+                    if(cursor != null || backward)
+                        page = (backward ? "before=" : "after=") + 
+                            (cursor == null ? "" : cursor);
+
+// totals of everything under the directory from the last walk.  They
+// change without the directory's date changing, so they go in the ETag.
+// The next walk runs in the background & shows up on a later reload.
+                    String totals = "";
+                    if(Stuff.dirSizes)
+                    {
+                        DirSizes.Node node = DirSizes.getCached(decodedPath);
+                        DirSizes.refresh(decodedPath);
+                        totals = "-du";
+                        if(node != null)
+                            totals += Long.toHexString(node.totalBytes) + 
+                                "-" + Long.toHexString(node.totalFiles);
+                    }
+
+// the listing changes when files are added, removed or renamed or the sort changes
+                    long dirDate = f.lastModified();
+                    String etag = "W/\"" + Long.toHexString(dirDate) + 
+                        "-" + Stuff.sortOrder + 
+                        "-" + (Stuff.sortDescending ? 1 : 0) + 
+                        totals + 
+                        (page.length() > 0 ? "-" + Integer.toHexString(page.hashCode()) : "") + 
+                        "\"";
+                    String validators = "ETag: " + etag + "\r\n" +
+                        "Last-Modified: " + httpDate(dirDate) + "\r\n" +
+                        "Cache-Control: no-cache\r\n" +
+                        "Vary: Accept-Encoding\r\n";
+                    if(dirDate > 0 && notModified(etag, dirDate))
+                    {
+                        sendHeader(pout, "304 Not Modified", "text/html", 0, validators);
+                        pout.flush();
+                        return;
+                    }
 
-                    File[] mFileList = f.listFiles();
-                    Stuff.log("WebServerThread", "sendFiles 3 mFileList=" + mFileList);
+// send a listing rendered before
+                    String cacheKey = ListingCache.getKey(path + "?" + page + totals, 
+                        Stuff.sortOrder, 
+                        Stuff.sortDescending);
+                    byte[] cached = listings.get(cacheKey, dirDate);
+                    if(cached != null)
+                    {
+                        if(Logger.isDebug())
+                            Logger.debug("WebServerThread", "sendFiles cached {}", cached.length);
+                        String encoding = chooseEncoding("text/html", cached.length);
+                        if(encoding == null)
+                        {
+                            sendHeader(pout, "200 OK", "text/html", cached.length, validators);
+                        }
+                        else
+                        {
+                            sendHeader(pout, 
+                                "200 OK", 
+                                "text/html", 
+                                -1, 
+                                validators + "Content-Encoding: " + encoding + "\r\n");
+                            if(!head) response.startEncoding(encoding, Stuff.compressLevel);
+                        }
+                        if(!head) out.write(cached);
+                        pout.flush();
+                        return;
+                    }
 
-                    if (mFileList != null)
+// the header & top of the page go out before the directory is read, 
+// so only check if it can be read
+                    if (f.canRead())
                     {
-                        DirEntry[] files = new DirEntry[mFileList.length];
-                        for (int i = 0; i < mFileList.length; i++) {
-                            files[i] = new DirEntry(mFileList[i].getAbsolutePath());
+                        String encoding = chooseEncoding("text/html", -1);
+                        if(encoding == null)
+                        {
+                            sendHeader(pout, "200 OK", "text/html", -1, validators);
+                        }
+                        else
+                        {
+                            sendHeader(pout, 
+                                "200 OK", 
+                                "text/html", 
+                                -1, 
+                                validators + "Content-Encoding: " + encoding + "\r\n");
+                            if(!head) response.startEncoding(encoding, Stuff.compressLevel);
                         }
-                        switch (Stuff.sortOrder) {
-                            case Stuff.SORT_SIZE:
-                                //Stuff.log("WebServerThread", "sendFiles SORT_SIZE");
-                                Arrays.sort(files, new SortBySize());
-                                break;
-                            case Stuff.SORT_DATE:
-                                //Stuff.log("WebServerThread", "sendFiles SORT_DATE");
-                                Arrays.sort(files, new SortByDate());
-                                break;
-                            default:
-                            case Stuff.SORT_PATH:
-                                //Stuff.log("WebServerThread", "sendFiles SORT_PATH");
-                                Arrays.sort(files, new SortByName());
-                                break;
+                        if(head)
+                        {
+                            pout.flush();
+                            return;
                         }
 
-                        sendHeader(pout, "text/html", -1);
+// keep a copy of the listing for next time
+                        ListingCache.Capture capture = new ListingCache.Capture(out, 
+                            Stuff.listingCacheSize / 4);
+                        pout = new PrintStream(capture);
 
 
 // don't underline links
@@ -638,6 +1562,10 @@ public class WebServer extends Thread
 
                         pout.print("<B>Index of " + decodedPath + "</B><BR>\r\n");
                         pout.print("<A HREF=\"" + path + "\"> <B>RELOAD </B></A>");
+                        pout.print(" | <A HREF=\"" + path + 
+                            "?dirsizes_" + (Stuff.dirSizes ? 0 : 1) + "\"><B>" + 
+                            (Stuff.dirSizes ? "HIDE TOTALS" : "SHOW TOTALS") + 
+                            "</B></A>");
 
 
 // create the .. entry
@@ -648,7 +1576,7 @@ public class WebServer extends Thread
                                 truncated = truncated.substring(0, i + 1);
                             }
 
-                            Stuff.log("WebServerThread", "sendFiles 2 truncated=" + truncated);
+                            Logger.debug("WebServerThread", "sendFiles 2 truncated={}", truncated);
 
                             String urlText = " | <A HREF=\"" +
                                     truncated +
@@ -675,6 +1603,17 @@ public class WebServer extends Thread
                         pout.print("<INPUT TYPE=\"submit\" VALUE=\"UPLOAD\" NAME=\"__UPLOAD\">\n");
                         pout.print("</FORM>\r\n");
 
+                        if(Stuff.searchRoot.length() > 0)
+                        {
+                            pout.print("<FORM METHOD=\"get\" ACTION=\"/__search\">\r\n");
+                            pout.print("Find files under this directory by name or *.jpg:<BR>\n");
+                            pout.print("<INPUT TYPE=\"hidden\" NAME=\"dir\" VALUE=\"" + 
+                                encodeHtml(decodedPath, false) + "\">\n");
+                            pout.print("<INPUT TYPE=\"text\" NAME=\"q\">\n");
+                            pout.print("<INPUT TYPE=\"submit\" VALUE=\"SEARCH\">\n");
+                            pout.print("</FORM>\r\n");
+                        }
+
                         pout.print("<FORM METHOD=\"post\" ENCTYPE=\"multipart/form-data\" >\r\n");
                         pout.print("Create a directory:<BR>\n");
                         pout.print("<INPUT TYPE=\"text\" NAME=\"__MKDIRPATH\">\n");
@@ -691,31 +1630,66 @@ public class WebServer extends Thread
                         pout.print("<BUTTON TYPE=\"submit\" VALUE=\"__DELETE\" NAME=\"__DELETE\">DELETE</BUTTON>\n");
                         pout.print("<BUTTON TYPE=\"submit\" VALUE=\"__RENAME\" NAME=\"__RENAME\">RENAME</BUTTON>\n");
                         pout.print("<BUTTON TYPE=\"submit\" VALUE=\"__EDIT\" NAME=\"__EDIT\">EDIT</BUTTON>\n");
+                        pout.print("<BUTTON TYPE=\"submit\" VALUE=\"__DOWNLOAD\" NAME=\"__DOWNLOAD\">DOWNLOAD</BUTTON>\n");
                         pout.print("<BUTTON TYPE=\"button\" onclick=\"selectAll()\">CHECK ALL</button>\n");
                         pout.print("<TABLE>\r\n");
 
 // create the sort options
                         pout.print("<TR>\r\n");
+                        int columns = 3;
                         pout.print(sortButton(Stuff.SORT_SIZE, path));
+                        if(Stuff.dirSizes)
+                        {
+                            pout.print(sortButton(Stuff.SORT_TOTAL, path));
+                            columns++;
+                        }
                         pout.print(sortButton(Stuff.SORT_DATE, path));
                         pout.print(sortButton(Stuff.SORT_PATH, path));
 
                         pout.print("</TR>\r\n");
-                        pout.print("<TR><TD style=\"height: 1px;\" bgcolor=\"000000\" COLSPAN=3></TD></TR>\r\n");
+                        pout.print("<TR><TD style=\"height: 1px;\" bgcolor=\"000000\" COLSPAN=" + 
+                            columns + "></TD></TR>\r\n");
+                        pout.flush();
+
+// keep only 1 page of the directory
+                        DirEntry cursorEntry = null;
+                        if(cursor != null) cursorEntry = ListingPage.parseCursor(cursor);
+                        ListingPage listingPage = new ListingPage(getComparator(), 
+                            cursorEntry, 
+                            backward, 
+                            Stuff.pageSize);
+                        DirScanner.Visitor visitor = listingPage;
+                        if(Stuff.dirSizes) visitor = new DirSizes.Filler(listingPage);
+                        boolean gotFiles = DirScanner.scan(decodedPath, visitor);
+                        listingPage.finish();
+                        DirEntry[] files = listingPage.entries;
+                        if(Logger.isDebug())
+                            Logger.debug("WebServerThread", "sendFiles 3 files={} page={}", 
+                                listingPage.total, 
+                                files.length);
+                        if(!gotFiles)
+                        {
+                            pout.print("<TR><TD COLSPAN=" + columns + 
+                                ">Couldn't read the directory.</TD></TR>\r\n");
+// don't cache the error
+                            capture.data = null;
+                        }
 
+// 1 formatter for the whole page
+                        //SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss");
+                        SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy HH:mm");
                         for (int i = 0; i < files.length; i++)
                         {
                             String formattedDate = "";
-                            //SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss");
-                            SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy HH:mm");
                             formattedDate = sdf.format(files[i].date);
 
                             String printedName = encodeHtml(files[i].name, false);
                             String linkPath = encodeHtml(files[i].path, true);
                             String checkboxName = printedName;
 
-Stuff.log("WebServerThread", "sendFiles HREF path=" + files[i].path +
-    " printedName=" + printedName.toString());
+Logger.debug("WebServerThread", "sendFiles HREF path={} printedName={}", 
+    files[i].path,
+    printedName);
 
                             String linkText = "<A HREF=\"" +
                                     linkPath +
@@ -729,18 +1703,33 @@ Stuff.log("WebServerThread", "sendFiles HREF path=" + files[i].path +
                                 printedName += "/";
                             }
 
-                            if (isSymlink(files[i].path)) 
+                            if (files[i].isLink) 
                             {
-                                File file = new File(files[i].path);
                                 textBegin = "<I>" + textBegin;
                                 printedName = printedName +
                                         " -> " +
-                                        file.getCanonicalPath();
+                                        files[i].linkTarget;
+                            }
+
+// bytes & files under a directory
+                            String total = "";
+                            if(Stuff.dirSizes)
+                            {
+                                total = "</TD><TD>";
+                                if(files[i].isDir && files[i].totalSize >= 0)
+                                    total += textBegin +
+                                        files[i].totalSize + 
+                                        " (" + files[i].totalFiles + ")";
+                                else
+// not walked yet
+                                if(files[i].isDir && !files[i].isLink)
+                                    total += textBegin + "...";
                             }
 
                             pout.print("<TR><TD>" +
                                     textBegin +
                                     files[i].size +
+                                    total +
                                 "</TD><TD>" +
                                     textBegin +
                                     formattedDate +
@@ -756,6 +1745,8 @@ Stuff.log("WebServerThread", "sendFiles HREF path=" + files[i].path +
 
                         pout.print("</TABLE>\r\n");
                         pout.print("</FORM>\r\n");
+                        if(listingPage.hasPrev || listingPage.hasNext)
+                            pout.print(pageLinks(path, listingPage));
                         pout.print(
                             "<script>\n" +
                             "    // Function to check/uncheck all checkboxes with class \"item\"\n" +
@@ -772,13 +1763,17 @@ Stuff.log("WebServerThread", "sendFiles HREF path=" + files[i].path +
                             "</script>\n"
                         );
 
+                        pout.flush();
+                        byte[] data = capture.getData();
+                        if(data != null) listings.put(cacheKey, decodedPath, dirDate, data);
                     }
                     else
                     {
                         errorReport(pout, connection, "404", "WebServerThread.sendFiles: SHIT",
                                 "Couldn't access that directory.  " +
                                 "How about going to this award winning page:<P>" +
-                                "<A HREF=\"http://" + getTheURL(connection) + "/sdcard" + "\">" + getTheURL(connection) + "/sdcard" + "</A>");
+                                "<A HREF=\"http://" + getTheURL(connection) + "/sdcard" + "\">" + getTheURL(connection) + "/sdcard" + "</A>",
+                                head);
 
                     }
                 }
@@ -787,17 +1782,98 @@ Stuff.log("WebServerThread", "sendFiles HREF path=" + files[i].path +
 // send the file
                     try {
                         // send file
-                        InputStream file = new FileInputStream(decodedPath);
-                        sendHeader(pout, guessContentType(decodedPath), f.length());
-                        sendFile(file, out); // send raw file
+                        FileInputStream file = new FileInputStream(decodedPath);
+                        try
+                        {
+                            long size = f.length();
+                            String contentType = guessContentType(decodedPath);
+                            long date = f.lastModified();
+                            String lastModified = httpDate(date);
+                            String etag = "\"" + Long.toHexString(size) + 
+                                "-" + Long.toHexString(date) + "\"";
+                            Vector<long[]> ranges = getRanges(request.range, size);
+// the file changed since the client got the rest of it
+                            String ifRange = request.get("if-range");
+                            if(ifRange != null && 
+                                !ifRange.equals(lastModified) &&
+                                !ifRange.equals(etag))
+                                ranges = null;
+// ranges are always of the uncompressed file
+                            String encoding = null;
+                            if(ranges == null) encoding = chooseEncoding(contentType, size);
+// the compressed bytes differ between file.gz, the cache & on the fly
+                            if(encoding != null)
+                                etag = "W/" + etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+
+                            String extra = "Accept-Ranges: bytes\r\n" +
+                                "ETag: " + etag + "\r\n" +
+                                "Last-Modified: " + lastModified + "\r\n" +
+                                "Cache-Control: no-cache\r\n";
+                            if(isCompressible(contentType))
+                                extra += "Vary: Accept-Encoding\r\n";
+
+                            boolean result = true;
+                            if(notModified(etag, date))
+                            {
+                                sendHeader(pout, "304 Not Modified", contentType, 0, extra);
+                                result = true;
+                            }
+                            else
+                            if(ranges != null)
+                            {
+                                result = sendRanges(pout, out, file, contentType, size, ranges, extra);
+                            }
+                            else
+                            if(encoding != null)
+                            {
+                                File cached = null;
+                                if(Stuff.precompress && encoding.equals("gzip"))
+                                    cached = getPrecompressed(f);
+
+                                extra += "Content-Encoding: " + encoding + "\r\n";
+                                if(cached != null)
+                                {
+                                    sendHeader(pout, "200 OK", contentType, cached.length(), extra);
+                                    if(!head)
+                                    {
+                                        FileInputStream gzip = new FileInputStream(cached);
+                                        try
+                                        {
+                                            result = sendFile(gzip, out, 0, cached.length());
+                                        } finally
+                                        {
+                                            gzip.close();
+                                        }
+                                    }
+                                }
+                                else
+                                {
+                                    sendHeader(pout, "200 OK", contentType, -1, extra);
+                                    if(!head)
+                                    {
+                                        response.startEncoding(encoding, Stuff.compressLevel);
+                                        result = sendFile(file, out, 0, size);
+                                    }
+                                }
+                            }
+                            else
+                            {
+                                sendHeader(pout, "200 OK", contentType, size, extra);
+                                if(!head) result = sendFile(file, out, 0, size); // send raw file
+                            }
+                            if(!result) keepAlive = false;
+                        } finally
+                        {
+                            file.close();
+                        }
                         log(connection, "200 OK");
                     } catch (FileNotFoundException e) {
                         // file not found
                         errorReport(pout, connection, "404", "WebServerThread.sendFiles: Not Found",
-                                "The requested URL was not found on this server.");
+                                "The requested URL was not found on this server.", head);
                     }
                 }
-                Stuff.log("WebServerThread", "sendFiles 4 done");
+                Logger.debug("WebServerThread", "sendFiles 4 done");
                 pout.flush();
             } catch(Exception e)
             {
@@ -805,6 +1881,26 @@ Stuff.log("WebServerThread", "sendFiles HREF path=" + files[i].path +
             }
         }
 
+// forget the listing of a directory after changing it
+        void invalidateListing(String path)
+        {
+            try
+            {
+                invalidateDir(URLDecoder.decode(path, StandardCharsets.UTF_8.toString()));
+            } catch(Exception e)
+            {
+                Stuff.log("WebServerThread", "invalidateListing: " + e);
+            }
+        }
+
+// same for a path which isn't URL encoded
+        void invalidateDir(String dir)
+        {
+            while(dir.length() > 1 && dir.endsWith("/"))
+                dir = dir.substring(0, dir.length() - 1);
+            listings.invalidate(dir);
+        }
+
         public void confirmMove(String path, 
             OutputStream out, 
             Vector<String> fileList,
@@ -1082,6 +2178,7 @@ Stuff.log("WebServerThread", "sendFiles HREF path=" + files[i].path +
 
             boolean failed = false;
             String newPath = path + "/" + fileList.get(0);
+            invalidateListing(path);
             try {
                 OutputStream fd = new FileOutputStream(new File(newPath));
                 PrintStream pout = new PrintStream(fd);
@@ -1117,6 +2214,7 @@ Stuff.log("WebServerThread", "sendFiles HREF path=" + files[i].path +
             PrintStream pout = new PrintStream(out);
             boolean failed = false;
             Stuff.log("WebServerThread", "renameFiles 1");
+            invalidateListing(path);
             for(int i = 0; i < fileList.size(); i++)
             {
                 String oldName = fileList.get(i);
@@ -1155,6 +2253,7 @@ Stuff.log("WebServerThread", "sendFiles HREF path=" + files[i].path +
             PrintStream pout = new PrintStream(out);
             File file = new File(path + "/" + name);
             Stuff.log("WebServerThread", "doMkdir " + file.getPath());
+            invalidateListing(path);
 
             if(!file.mkdir())
             {
@@ -1177,6 +2276,8 @@ Stuff.log("WebServerThread", "sendFiles HREF path=" + files[i].path +
         {
             boolean failed = false;
             PrintStream pout = new PrintStream(out);
+            invalidateListing(path);
+            invalidateDir(movePath);
 
             for(int i = 0; i < fileList.size(); i++)
             {
@@ -1210,6 +2311,7 @@ Stuff.log("WebServerThread", "sendFiles HREF path=" + files[i].path +
         {
             boolean failed = false;
             PrintStream pout = new PrintStream(out);
+            invalidateListing(path);
             for(int i = 0; i < fileList.size(); i++)
             {
                 String fullPath = path + "/" + fileList.get(i);
@@ -1240,6 +2342,7 @@ Stuff.log("WebServerThread", "sendFiles HREF path=" + files[i].path +
         {
 // rename the temp files
             boolean failed = false;
+            invalidateListing(path);
             for(String key : files.keySet())
             {
                 String filename = key;
@@ -1285,17 +2388,12 @@ Stuff.log("WebServerThread", "doUpload: renaming " + tempPath + " to " + newPath
             return x.replace("\n", "").replace("\r", "");
         }
 
-        public String getBoundary(BufferedInputStream in)
+// get the boundary from the Content-Type header
+        public String getBoundary()
         {
-            while(true)
+            String text = request.get("content-type");
+            if(text != null)
             {
-                String text = readLine(in);
-                if(text.length() == 0)
-                {
-                    Stuff.log("WebServerThread", "getBoundary no boundary");
-                    return "";
-                }
-                
                 String[] strings = text.split("boundary=");
                 if(strings.length > 1)
                 {
@@ -1303,263 +2401,144 @@ Stuff.log("WebServerThread", "doUpload: renaming " + tempPath + " to " + newPath
                     return stripLinefeed(strings[1]);
                 }
             }
+
+            Stuff.log("WebServerThread", "getBoundary no boundary");
+            return "";
         }
 
 // return true if end of post
-        public boolean skipBoundary(String boundary, BufferedInputStream in)
+        public boolean skipBoundary(MultipartScanner in)
         {
-            while(true)
+            try
             {
-                String text = readLine(in);
-                if(text.length() == 0)
-                {
-                    return true;
-                }
-                if(text.contains("--" + boundary + "--"))
-                {
-                    return true;
-                }
-                if(text.contains(boundary))
-                {
-                    return false;
-                }
+                return !in.skipPreamble();
+            } catch(IOException e)
+            {
+                Stuff.log("WebServerThread", "skipBoundary: " + e);
+                return true;
             }
         }
 
 
-        public boolean getData(String boundary, BufferedInputStream in, BufferedOutputStream out)
+// write the body of a part to out.  Returns true if it failed.
+        public boolean getData(MultipartScanner in, OutputStream out)
         {
-// boundary for data has 4 extra starting bytes
-            byte[] boundary2 = new byte[boundary.length() + 4];
-            boundary2[0] = '\r';
-            boundary2[1] = '\n';
-            boundary2[2] = '-';
-            boundary2[3] = '-';
-            System.arraycopy(boundary.getBytes(), 0, boundary2, 4, boundary.getBytes().length);
-
-            byte[] fifo = new byte[65536];
-            int fifo_size = 0;
-
-// skip Content-Type & empty line
-            String text = readLine(in);
-            if(text.contains("Content-Type:"))
-                readLine(in);
-
-// read until the boundary
-            boolean error = false;
-            int read_result = 0;
-            while(!error)
+            try
             {
-// mark the current position
-                int maxRead = fifo.length - fifo_size;
-                in.mark(fifo.length);
-// start of the read in the fifo
-                int read_start = fifo_size;
-                try
-                {
-                    read_result = in.read(fifo, fifo_size, maxRead);
-                } catch(IOException e)
-                {
-                    Stuff.log("WebServerThread", "getData: read failed");
-                    error = true;
-                }
-
-// failed or EOF
-                if(error || read_result <= 0)
+                if(!in.copyPart(out))
                 {
                     Stuff.log("WebServerThread", "getData: EOF");
                     return true;
                 }
-                fifo_size += read_result;
-
-// test fifo for boundary
-                int score = 0;
-                boolean gotBoundary = false;
-// end of boundary in the fifo buffer
-                int boundaryEnd = 0;
-                for(int i = 0; i < fifo_size; i++)
-                {
-                    if(fifo[i] == boundary2[score])
-                    {
-                        score++;
-                        if(score >= boundary2.length)
-                        {
-                            gotBoundary = true;
-                            boundaryEnd = i + 1;
-                            break;
-                        }
-                    }
-                    else
-                    {
-                        score = 0;
-                        if(fifo[i] == boundary2[0]) score = 1;
-                    }
-                }
-
-                if(gotBoundary)
-                {
-// rewind the input to the end of the boundary, as if we read 1 character at a time
-                    try {
-                        in.reset();
-// skip length of the last read up to the end of the boundary
-                        in.skip(boundaryEnd - read_start);
-
-// DEBUG: print future data                        
-// in.mark(1024);
-// StringBuilder test = new StringBuilder();
-// for(int i = 0; i < 16; i++) test.append(" " + readChar(in));
-// in.reset();
-// Stuff.log("WebServerThread", "getData test=" + test.toString());
-
-                    } catch(IOException e) 
-                    {
-                        Stuff.log("WebServerThread", "getData: in can't rewind 1");
-                        error = true;
-                    }
-                    fifo_size = boundaryEnd;
-                }
-                else
-                {
-                    try {
-                        in.reset();
-                        in.skip(read_result);
-                    } catch(IOException e) 
-                    {
-                        Stuff.log("WebServerThread", "getData: in can't rewind 2");
-                        error = true;
-                    }
-                }
-
-//                 Stuff.log("WebServerThread", "getData: gotBoundary=" + gotBoundary +
-//                     " boundary2.length=" + boundary2.length +
-//                     " fifo_size=" + fifo_size);
-
-// at most, maxWrite can be written
-// if we didn't get the boundary, eat the 1st byte of the boundary size to advance
-// the scan window
-                int maxWrite = fifo_size - boundary2.length;
-                if(!gotBoundary) maxWrite += 1;
-                if(maxWrite > 0)
-                {
-                    try
-                    {
-                        out.write(fifo, 0, maxWrite);
-                    } catch(IOException e)
-                    {
-                        Stuff.log("WebServerThread", "getData: write failed");
-                        return true;
-                    }
-
-                    if(gotBoundary)
-                    {
-                        fifo_size = 0;
-                        break;
-                    }
-                    else
-                    {
-// drain the fifo
-                        System.arraycopy(fifo, maxWrite, fifo, 0, fifo_size - maxWrite);
-                        fifo_size -= maxWrite;
-                    }
-                }
+            } catch(IOException e)
+            {
+                Stuff.log("WebServerThread", "getData: " + e);
+                return true;
             }
-
-            return error;
+            return false;
         }
 
 // returns the name & a filename if it exists
-        public Map<String, String> getContentDisposition(BufferedInputStream in,
-            String boundary)
+        public Map<String, String> getContentDisposition(MultipartScanner in)
         {
             Map<String, String> result = new HashMap<>();
             result.put("filename", "");
             result.put("name", "");
+            if(in.lastPart) return result;
 
-            while(true)
+            String[] lines;
+            try
             {
-                String text = readLine(in);
-//Stuff.log("WebServerThread", "getContentDisposition text=" + text + 
-//" boundary=" + boundary);
-                if(text.length() == 0 ||
-                    text.contains("--" + boundary + "--"))
-                {
-                    Stuff.log("WebServerThread", "getContentDisposition EOF");
-                    return result;
-                }
-                if(text.startsWith("Content-Disposition:"))
+                lines = in.readHeaders();
+            } catch(IOException e)
+            {
+                lines = null;
+            }
+            if(lines == null)
+            {
+                Stuff.log("WebServerThread", "getContentDisposition EOF");
+                return result;
+            }
+
+            for(int i = 0; i < lines.length; i++)
+            {
+                String text = lines[i];
+                if(text.regionMatches(true, 0, "Content-Disposition:", 0, 20))
                 {
-Stuff.log("WebServerThread", "getContentDisposition text=" + text);
+Logger.debug("WebServerThread", "getContentDisposition text={}", text);
                     int filenameIndex = text.indexOf("filename=\"");
                     if(filenameIndex >= 0)
                     {
                         String[] strings = text.substring(filenameIndex).split("\"");
 //Stuff.log("WebServerThread", "getContentDisposition filename=" + strings[1]);
-                        if(strings.length > 2)
+                        if(strings.length >= 2)
                             result.put("filename", strings[1]);
                     }
 
-                    int nameIndex = text.indexOf("name=\"");
+                    int nameIndex = text.indexOf(" name=\"");
+                    if(nameIndex < 0) nameIndex = text.indexOf(";name=\"");
                     if(nameIndex >= 0)
                     {
                         String[] strings = text.substring(nameIndex).split("\"");
-                        if(strings.length > 2)
+                        if(strings.length >= 2)
                             result.put("name", strings[1]);
                     }
-                    return result;
                 }
             }
+            return result;
         }
 
 // returns the text value
-        public Map<String, String> getContentValue(String boundary, BufferedInputStream in)
+        public Map<String, String> getContentValue(MultipartScanner in)
         {
             Map<String, String> result = new HashMap<>();
-            String value = "";
-
-//Stuff.log("WebServerThread", "getContentValue 1");
-// skip the 1st line
-            String line = readLine(in);
-//Stuff.log("WebServerThread", "getContentValue 2 text=" + text);
-
-// the value
-            while(true)
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            try
             {
-                line = readLine(in);
-//Stuff.log("WebServerThread", "getContentValue 3 line=" + line);
-                if(!line.contains(boundary))
-                    value += line;
-                else
-                {
-// delete the last newline
-                    if(value.length() > 0 &&
-                        value.charAt(value.length() - 1) == '\n')
-                        value = value.substring(0, value.length() - 1);
-                    result.put("value", value);
-                    if(line.contains("--" + boundary + "--"))
-                        result.put("eof", "true");
-                    break;
-                }
+                in.copyPart(data);
+            } catch(IOException e)
+            {
+                Stuff.log("WebServerThread", "getContentValue: " + e);
             }
-//Stuff.log("WebServerThread", "getContentValue 4 result=" + result);
+// lines end in \n like the text box
+            String value = new String(data.toByteArray(), StandardCharsets.ISO_8859_1)
+                .replace("\r", "");
+            result.put("value", value);
+            if(in.lastPart) result.put("eof", "true");
             return result;
         }
 
 // convert the post into tables
-        public void handlePost(String path, OutputStream out, BufferedInputStream in)
+        public void handlePost(String path, OutputStream out, InputStream body)
         {
-            String boundary = getBoundary(in);
+            String boundary = getBoundary();
+            MultipartScanner in = new MultipartScanner(body, boundary);
 // read up to next boundary
-            skipBoundary(boundary, in);
+            skipBoundary(in);
 // make a table of all the content, uploaded files, & selected filenames
             Map<String, String> content = new HashMap<>();
             Vector<String> fileList = new Vector<String>();
 // map files to temp files
             Map<String, String> files = new HashMap<>();
+            boolean failed = false;
+
+// the whole post has to fit before any part is written
+            if(request.contentLength > 0 &&
+                new File(path).getUsableSpace() < request.contentLength)
+            {
+                PrintStream pout = new PrintStream(out);
+                errorReport(pout,
+                        connection,
+                        "507",
+                        "Insufficient Storage",
+                        "Not enough space for " + request.contentLength + " bytes in " + path);
+                return;
+            }
 
             while(true)
             {
 //Stuff.log("WebServerThread", "handlePost 1");
-                Map<String, String> result = getContentDisposition(in, boundary);
+                Map<String, String> result = getContentDisposition(in);
                 String filename = result.get("filename");
                 String name = result.get("name");
 //                String decodedFilename = Html.fromHtml(filename).toString();
@@ -1567,13 +2546,14 @@ Stuff.log("WebServerThread", "getContentDisposition text=" + text);
                 String decodedFilename = decodeHtml(filename);
 
 
-Stuff.log("WebServerThread", "handlePost filename=" + filename + " decodedFilename=" + decodedFilename);
+Logger.debug("WebServerThread", "handlePost filename={} decodedFilename={}", filename, decodedFilename);
 
 //for(int i = 0; i < decodedFilename.length(); i++)
 //Stuff.log("WebServerThread", "i=" + i + " c=" + (int)decodedFilename.charAt(i));
 
+if(Logger.isDebug())
 for (String key : result.keySet()) 
-Stuff.log("WebServerThread", "handlePost key=" + key + " value=\"" + result.get(key) + "\"");
+Logger.debug("WebServerThread", "handlePost key={} value=\"{}\"", key, result.get(key));
 
 
                 if(!name.equals(""))
@@ -1582,12 +2562,13 @@ Stuff.log("WebServerThread", "handlePost key=" + key + " value=\"" + result.get(
                     {
 // uploaded files have to be written to a temporary or we'll run out of memory
                         String tempPath = path + "/.temp" + UUID.randomUUID();
-                        BufferedOutputStream output = null;
+                        UploadWriter output = null;
                         boolean error = false;
-Stuff.log("WebServerThread", "handlePost saving temp to " + tempPath);
+Logger.debug("WebServerThread", "handlePost saving temp to {}", tempPath);
 
                         try {
-                            output = new BufferedOutputStream(new FileOutputStream(new File(tempPath)));
+// the parts don't have sizes
+                            output = new UploadWriter(new File(tempPath), -1);
                         } catch(IOException e)
                         {
                             Stuff.log("WebServerThread", "handlePost: write FAILED " + e);
@@ -1597,7 +2578,7 @@ Stuff.log("WebServerThread", "handlePost saving temp to " + tempPath);
 
                         if(!error) 
                         {
-                            if(getData(boundary, in, output))
+                            if(getData(in, output))
                                 error = true;
 
 
@@ -1605,7 +2586,10 @@ Stuff.log("WebServerThread", "handlePost saving temp to " + tempPath);
                                 output.close();
                             } catch(IOException e)
                             {
+                                Stuff.log("WebServerThread", "handlePost: write FAILED " + e);
+                                error = true;
                             }
+                            if(error) new File(tempPath).delete();
                         }
 
                         if(error)
@@ -1617,6 +2601,7 @@ Stuff.log("WebServerThread", "handlePost saving temp to " + tempPath);
                                     "555",
                                     "WebServerThread.handlePost: SHIT",
                                     "Couldn't create the temp file " + tempPath);
+                            failed = true;
                             break;
                         }
                         else
@@ -1627,14 +2612,14 @@ Stuff.log("WebServerThread", "handlePost saving temp to " + tempPath);
                     }
                     else
                     {
-                        result = getContentValue(boundary, in);
+                        result = getContentValue(in);
 // decode the NAME= tag
                         String value = result.get("value");
                         boolean isEOF = result.get("eof") != null;
                         String decodedName = decodeHtml(name);
                         
                         
-Stuff.log("WebServerThread", "handlePost name=" + name + " value=" + value);
+Logger.debug("WebServerThread", "handlePost name={} value={}", name, value);
                         if(value.equals(CHECKED))
                             fileList.add(decodedName);
                         else
@@ -1650,50 +2635,101 @@ Stuff.log("WebServerThread", "handlePost name=" + name + " value=" + value);
                     break;
             }
 
-            Stuff.log("WebServerThread", "handlePost done");
+            if(failed)
+            {
+// don't leave the parts which made it
+                for(String tempPath : files.values())
+                    new File(tempPath).delete();
+                return;
+            }
+
+            Logger.debug("WebServerThread", "handlePost done");
+            if(Logger.isDebug())
+            {
 // print the key values
-            for (String key : content.keySet()) 
-                Stuff.log("WebServerThread", "handlePost key=" + key + " value=\"" + content.get(key) + "\"");
+                for (String key : content.keySet()) 
+                    Logger.debug("WebServerThread", "handlePost key={} value=\"{}\"", 
+                        key, 
+                        content.get(key));
 // print all the filenames
-            for(int i = 0; i < fileList.size(); i++)
-                Stuff.log("WebServerThread", "handlePost selected file=" + fileList.get(i));
+                for(int i = 0; i < fileList.size(); i++)
+                    Logger.debug("WebServerThread", "handlePost selected file={}", 
+                        fileList.get(i));
 // print all the data
-            for(String key : files.keySet())
-                Stuff.log("WebServerThread", "handlePost filename=" + key + 
-                    " temp file=" + files.get(key));
+                for(String key : files.keySet())
+                    Logger.debug("WebServerThread", "handlePost filename={} temp file={}", 
+                        key,
+                        files.get(key));
+            }
 
 
 // perform the operation
 //            Stuff.log("WebServerThread", "handlePost UPLOAD=" + content.get("UPLOAD"));
             if(content.get("__MKDIR") != null)
+            {
+                route = "post_mkdir";
                 doMkdir(path, out, content.get("__MKDIRPATH"));
+            }
             else
             if(content.get("__UPLOAD") != null)
+            {
+                route = "post_upload";
                 doUpload(path, out, files);
+            }
             else
             if(content.get("__DELETE") != null)
+            {
+                route = "post_delete";
                 confirmDelete(path, out, fileList);
+            }
             else
             if(content.get("__MOVE") != null)
+            {
+                route = "post_move";
                 confirmMove(path, out, fileList, content.get("__MOVEPATH"));
+            }
             else
             if(content.get("__CONFIRMMOVE") != null)
+            {
+                route = "post_confirmmove";
                 moveFiles(path, out, fileList, content.get("__MOVEPATH"));
+            }
             else
             if(content.get("__CONFIRMDELETE") != null)
+            {
+                route = "post_confirmdelete";
                 deleteFiles(path, out, fileList);
+            }
             else
             if(content.get("__RENAME") != null)
+            {
+                route = "post_rename";
                 confirmRename(path, out, fileList);
+            }
             else
             if(content.get("__CONFIRMRENAME") != null)
+            {
+                route = "post_confirmrename";
                 renameFiles(path, out, fileList, content);
+            }
             else
             if(content.get("__EDIT") != null)
+            {
+                route = "post_edit";
                 editFile(path, out, fileList, false);
+            }
             else
             if(content.get("__EDITSAVE") != null)
+            {
+                route = "post_editsave";
                 editSave(path, out, fileList, content.get("__EDITTEXT"));
+            }
+            else
+            if(content.get("__DOWNLOAD") != null)
+            {
+                route = "post_download";
+                sendArchive(path, fileList, "zip");
+            }
             else
 //             if(content.get("__EDITREVERT") != null)
 //                 editFile(path, out, fileList);
@@ -1702,109 +2738,868 @@ Stuff.log("WebServerThread", "handlePost name=" + name + " value=" + value);
                 content.get("__ABORTRENAME") != null ||
                 content.get("__ABORTMOVE") != null ||
                 content.get("__EDITQUIT") != null)
+            {
+                route = "post_abort";
                 sendFiles(path, out);
+            }
         }
 
 
-        public void run()
+// a method with no handler.  The body isn't read so the connection can't be reused.
+        void sendNotAllowed(String req)
         {
-            while(true)
+            PrintStream pout = new PrintStream(response);
+            if(request.contentLength > 0 || request.get("transfer-encoding") != null)
+                keepAlive = false;
+            String status;
+            String extra = "";
+            if(req.equals("OPTIONS") ||
+                req.equals("DELETE") ||
+                req.equals("PATCH") ||
+                req.equals("TRACE") ||
+                req.equals("CONNECT"))
             {
-                try {
-                    lock.acquire();
-
-
-					Stuff.log("WebServerThread", "run: running 1");
-                    BufferedInputStream in = new BufferedInputStream(connection.getInputStream());
-                    OutputStream out = new BufferedOutputStream(connection.getOutputStream());
+                status = "405 Method Not Allowed";
+                extra = "Allow: GET, HEAD, POST, PUT\r\n";
+            }
+            else
+                status = "501 Not Implemented";
+            byte[] body = (status + "\r\n").getBytes();
+            sendHeader(pout, status, "text/plain", body.length, extra);
+            pout.write(body, 0, body.length);
+            pout.flush();
+            log(connection, status);
+        }
 
 
+// PUT /dir/file writes the body to the file, replacing it if it exists.
+// The body can have a Content-Length or be chunked & can be gzipped.
+// It goes to a temp file which is renamed when the body is complete.
+        void handlePut(String path, HttpInput in) throws IOException
+        {
+            PrintStream pout = new PrintStream(response);
+            File file = new File(URLDecoder.decode(path, StandardCharsets.UTF_8.toString()));
+            File dir = file.getParentFile();
+            String transferEncoding = request.get("transfer-encoding");
+            boolean chunked = transferEncoding != null && 
+                transferEncoding.toLowerCase().contains("chunked");
+            BodyInputStream body;
+            if(chunked)
+                body = new ChunkedInputStream(in);
+            else
+            if(request.contentLength >= 0)
+                body = new BodyInputStream(in, request.contentLength);
+            else
+            {
+// can't tell where the body ends
+                keepAlive = false;
+                errorReport(pout, connection, "411", "Length Required", 
+                    "Send a Content-Length or chunks.");
+                pout.flush();
+                return;
+            }
 
-// read first line of request (ignore the rest)
-                    String request = readLine(in);
-                    Stuff.log("x", "WebServerThread.run request=" + request);
+            File temp = null;
+            try
+            {
+                if(dir == null || !dir.isDirectory() || file.isDirectory())
+                {
+                    errorReport(pout, connection, "409", "Conflict", 
+                        "Can't write a file at " + file);
+                    return;
+                }
 
-                    String[] parts = request.split("\\s+");
-                    if(parts.length >= 2)
+                InputStream src = body;
+                long sizeHint = -1;
+                String encoding = request.get("content-encoding");
+                if(encoding == null || encoding.equalsIgnoreCase("identity"))
+                {
+                    if(!chunked) sizeHint = request.contentLength;
+                }
+                else
+                if(encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("x-gzip"))
+                {
+                    try
                     {
-                        String req = parts[0];
-                        String path = parts[1];
-// extract the path name
-//                        String path = request.substring(4, request.length() - 9).trim();
-                        Stuff.log("x", 
-                            "WebServerThread.run request=" + request + 
-                            " req=" + req + 
-                            " path=" + path);
-
-// handle a sort command.  Android doesn't allow ? in regular filenames
-                            int sort_index = path.indexOf('?');
-                            if(sort_index >= 0)
-                            {
-                                String sort_command = path.substring(sort_index + 1);
-                                path = path.substring(0, sort_index);
-                                Stuff.log("x", "WebServerThread.run 1 sort_command=" + sort_command);
-                                if(sort_command.substring(0, 4).equals("sort"))
-                                {
-                                    Stuff.sortOrder = Integer.valueOf(sort_command.substring(5, 6));
-                                    int descending = Integer.valueOf(sort_command.substring(7, 8));
-                                    if(descending == 0)
-                                        Stuff.sortDescending = false;
-                                    else
-                                        Stuff.sortDescending = true;
-                                    Stuff.saveDefaults();
-                                }
-                            }
-
-// strip ending /
-                            while (path.length() > 1 &&
-                                    path.lastIndexOf('/') == path.length() - 1) {
-                                path = path.substring(0, path.length() - 1);
-                            }
-
-// get the file
-                            if (req.startsWith("GET")) 
-                            {
-                                // flush the socket to avoid a disconnection by peer
-                                while(true)
-                                {
-                                    //Stuff.log("x", "WebServerThread.run 1");
+// reads the gzip header
+                        src = new GZIPInputStream(body, BUFFER_SIZE);
+                    } catch(IOException e)
+                    {
+                        keepAlive = false;
+                        errorReport(pout, connection, "400", "Bad Request", 
+                            "The body isn't gzipped.");
+                        return;
+                    }
+                }
+                else
+                if(encoding.equalsIgnoreCase("deflate"))
+                    src = new InflaterInputStream(body, new Inflater(), BUFFER_SIZE);
+                else
+                {
+                    errorReport(pout, connection, "415", "Unsupported Media Type", 
+                        "Can't decode " + encoding);
+                    return;
+                }
 
-                                    String line = readLine(in);
-                                    Stuff.log("WebServerThread", "run 2 line=" + line);
-                                    if(line.length() == 0 ||
-                                        line.charAt(0) == '\n')
-                                    {
-                                        break;
-                                    }
-                                }
-                                Stuff.log("WebServerThread", "run 3 done");
+                if(sizeHint > 0 && dir.getUsableSpace() < sizeHint)
+                {
+                    errorReport(pout, connection, "507", "Insufficient Storage", 
+                        "Not enough space for " + sizeHint + " bytes in " + dir);
+                    return;
+                }
 
-                                sendFiles(path, out);
-                            }
-                            else
-// handle a form
-                            if (req.startsWith("POST")) 
-                            {
-//                                dumpPost(path, in);
-                                handlePost(path, out, in);
-                            }
-//                        }
+                boolean existed = file.exists();
+                temp = new File(dir, ".temp" + UUID.randomUUID());
+                UploadWriter output;
+                try
+                {
+                    output = new UploadWriter(temp, sizeHint);
+                } catch(IOException e)
+                {
+                    Stuff.log("WebServerThread", "handlePut: " + e);
+                    errorReport(pout, connection, "403", "Forbidden", 
+                        "Can't write to " + dir);
+                    return;
+                }
+                boolean error = false;
+                byte[] buffer = getBuffer();
+                try
+                {
+                    while(true)
+                    {
+                        int result = src.read(buffer, 0, buffer.length);
+                        if(result < 0) break;
+                        output.write(buffer, 0, result);
                     }
-
-                    Stuff.log("x", "WebServerThread.run: finished");
-                    out.flush();
-                    if (connection != null)
+                    body.drain();
+                } catch(IOException e)
+                {
+                    Stuff.log("WebServerThread", "handlePut: " + e);
+                    error = true;
+                } finally
+                {
+                    putBuffer(buffer);
+                    try
+                    {
+                        output.close();
+                    } catch(IOException e)
                     {
-                        connection.close();
+                        Stuff.log("WebServerThread", "handlePut: " + e);
+                        error = true;
                     }
-                } catch(Exception e)
+                }
+
+                if(error || !body.isComplete())
                 {
-                    Stuff.log("x", "WebServerThread.run: " + e);
+                    keepAlive = false;
+                    errorReport(pout, connection, "400", "Bad Request", 
+                        "The body was cut off or couldn't be written.");
+                    return;
                 }
 
+                Stuff.log("WebServerThread", "handlePut: renaming " + temp + " to " + file);
+                if(!temp.renameTo(file))
+                {
+                    errorReport(pout, connection, "500", "Internal Server Error", 
+                        "Couldn't rename " + temp + " to " + file);
+                    return;
+                }
+                temp = null;
+                int slash = path.lastIndexOf('/');
+                invalidateListing(slash > 0 ? path.substring(0, slash) : "/");
 
-                busy = false;
+                if(existed)
+                    sendHeader(pout, "204 No Content", "text/plain", 0, "");
+                else
+                    sendHeader(pout, "201 Created", "text/plain", 0, 
+                        "Location: " + path + "\r\n");
+            } finally
+            {
+                if(temp != null) temp.delete();
+                pout.flush();
+                body.drain();
+            }
+        }
+
+// The resumable upload protocol.
+// POST <dir> with Upload-Length & the name in Upload-Metadata or ?name= 
+//     creates an upload.  Location has the URL for the rest.
+// HEAD <dir>?upload=<id> gets Upload-Offset, the bytes received without 
+//     a gap from the start, & Upload-Ranges, all the ranges received.
+// PATCH <dir>?upload=<id> with Upload-Offset or 
+// PUT <dir>?upload=<id> with Content-Range writes a chunk.  Chunks can go 
+//     in any order, on several connections at once.
+// DELETE <dir>?upload=<id> abandons it.
+        void handleResumable(String path, String id, HttpInput in)
+            throws IOException
+        {
+            PrintStream pout = new PrintStream(response);
+            String dir = URLDecoder.decode(path, StandardCharsets.UTF_8.toString());
+            String tusHeader = "Tus-Resumable: 1.0.0\r\n";
+            BodyInputStream body = null;
+            if(request.contentLength >= 0) 
+                body = new BodyInputStream(in, request.contentLength);
+            else
+// no Content-Length or Transfer-Encoding is an empty body
+            if(id == null && request.get("transfer-encoding") == null)
+                body = new BodyInputStream(in, 0);
+            else
+            if(!method.equals("HEAD") && !method.equals("DELETE"))
+            {
+// can't tell where the body ends
+                keepAlive = false;
+                errorReport(pout, connection, "411", "Length Required", 
+                    "Chunks need a Content-Length.");
+                pout.flush();
+                return;
+            }
+
+            try
+            {
+                ResumableUpload upload = null;
+                if(id == null)
+                {
+// create it
+                    long length = -1;
+                    try
+                    {
+                        length = Long.parseLong(request.get("upload-length").trim());
+                    } catch(NumberFormatException e)
+                    {
+                    }
+                    String name = ResumableUpload.getMetadata(request.get("upload-metadata"), 
+                        "filename");
+                    if(name == null) name = query.get("name");
+                    if(length < 0 || 
+                        name == null || 
+                        name.length() == 0 ||
+                        name.contains("/") || 
+                        name.equals(".") || 
+                        name.equals("..") ||
+                        !new File(dir).isDirectory())
+                    {
+                        errorReport(pout, connection, "400", "Bad Request", 
+                            "Need a directory, Upload-Length & a filename.");
+                        return;
+                    }
+                    if(request.contentLength > length)
+                    {
+                        errorReport(pout, connection, "400", "Bad Request", 
+                            "The body is longer than Upload-Length.");
+                        return;
+                    }
+                    if(new File(dir).getUsableSpace() < length)
+                    {
+                        errorReport(pout, connection, "507", "Insufficient Storage", 
+                            "Not enough space for " + length + " bytes in " + dir);
+                        return;
+                    }
+
+                    upload = ResumableUpload.create(dir, name, length);
+                    if(body != null && request.contentLength > 0)
+                        upload.write(body, 0, request.contentLength);
+                    if(upload.complete) invalidateListing(path);
+                    sendHeader(pout, "201 Created", "text/plain", 0, 
+                        tusHeader + 
+                        "Location: " + path + "?upload=" + upload.id + "\r\n" +
+                        "Upload-Offset: " + upload.getOffset() + "\r\n");
+                    return;
+                }
+
+                upload = ResumableUpload.get(id);
+                if(upload == null)
+                {
+                    errorReport(pout, connection, "404", "Not Found", 
+                        "No upload " + id);
+                    return;
+                }
+
+                if(method.equals("HEAD"))
+                {
+                    StringBuilder ranges = new StringBuilder();
+                    synchronized(upload)
+                    {
+                        for(Map.Entry<Long, Long> range : upload.received.entrySet())
+                        {
+                            if(ranges.length() > 0) ranges.append(',');
+                            ranges.append(range.getKey()).append('-').append(range.getValue() - 1);
+                        }
+                    }
+                    sendHeader(pout, "200 OK", "text/plain", 0, 
+                        tusHeader + 
+                        "Upload-Offset: " + upload.getOffset() + "\r\n" +
+                        "Upload-Length: " + upload.length + "\r\n" +
+                        "Upload-Ranges: " + ranges + "\r\n" +
+                        "Cache-Control: no-store\r\n");
+                    return;
+                }
+
+                if(method.equals("DELETE"))
+                {
+                    upload.delete();
+                    sendHeader(pout, "204 No Content", "text/plain", 0, tusHeader);
+                    return;
+                }
+
+                long offset = -1;
+                if(method.equals("PATCH"))
+                {
+                    try
+                    {
+                        offset = Long.parseLong(request.get("upload-offset").trim());
+                    } catch(Exception e)
+                    {
+                    }
+                }
+                else
+                if(method.equals("PUT"))
+                {
+// Content-Range: bytes start-end/total
+                    String range = request.get("content-range");
+                    if(range != null && range.startsWith("bytes "))
+                    {
+                        try
+                        {
+                            offset = Long.parseLong(range.substring(6, range.indexOf('-')).trim());
+                        } catch(Exception e)
+                        {
+                        }
+                    }
+                }
+                else
+                {
+                    keepAlive = false;
+                    errorReport(pout, connection, "405", "Method Not Allowed", 
+                        "Use HEAD, PATCH, PUT or DELETE on an upload.");
+                    return;
+                }
+
+                if(offset < 0 || offset + request.contentLength > upload.length)
+                {
+                    errorReport(pout, connection, "400", "Bad Request", 
+                        "The chunk doesn't fit in the upload.");
+                    return;
+                }
+
+                long written = upload.write(body, offset, request.contentLength);
+                if(written < request.contentLength)
+                {
+// the connection dropped
+                    keepAlive = false;
+                    return;
+                }
+                if(upload.complete) invalidateListing(path);
+                sendHeader(pout, "204 No Content", "text/plain", 0, 
+                    tusHeader + 
+                    "Upload-Offset: " + upload.getOffset() + "\r\n");
+            } catch(IOException e)
+            {
+                Stuff.log("WebServerThread", "handleResumable: " + e);
+                errorReport(pout, connection, "500", "Internal Server Error", 
+                    "The upload failed.");
+            } finally
+            {
+                pout.flush();
+                if(body != null) body.drain();
+            }
+        }
+
+
+// GET /__metrics
+        void sendMetrics() throws IOException
+        {
+            byte[] page = Metrics.getPage().getBytes("UTF-8");
+            PrintStream pout = new PrintStream(response);
+            sendHeader(pout, 
+                "200 OK", 
+                "text/plain; version=0.0.4; charset=utf-8", 
+                page.length, 
+                "Cache-Control: no-cache\r\n");
+            pout.flush();
+            response.write(page);
+        }
+
+
+// stream the selected files or the whole directory as a ZIP or TAR.
+// level= overrides the deflate level.  0 stores everything.
+        void sendArchive(String path, Vector<String> fileList, String type)
+        {
+            try
+            {
+                String dir = URLDecoder.decode(path, StandardCharsets.UTF_8.toString());
+                PrintStream pout = new PrintStream(response);
+                int level = Stuff.compressLevel;
+                try
+                {
+                    if(query.get("level") != null)
+                        level = Integer.parseInt(query.get("level"));
+                } catch(NumberFormatException e)
+                {
+                    level = -1;
+                }
+                if(level < 0 || level > 9 || 
+                    (!type.equals("zip") && !type.equals("tar")))
+                {
+                    errorReport(pout, connection, "400", "Bad Request", 
+                        "archive is zip or tar & level is 0 to 9", method.equals("HEAD"));
+                    pout.flush();
+                    return;
+                }
+                if(fileList != null && fileList.size() == 0)
+                {
+                    errorReport(pout, connection, "400", "Bad Request", 
+                        "No files were selected", method.equals("HEAD"));
+                    pout.flush();
+                    return;
+                }
+
+// a whole directory goes in a folder with its name
+                while(dir.length() > 1 && dir.endsWith("/"))
+                    dir = dir.substring(0, dir.length() - 1);
+                String dirName = dir.substring(dir.lastIndexOf('/') + 1);
+                if(dirName.length() == 0) dirName = "root";
+                String filename = dirName + "." + type;
+                if(fileList != null && fileList.size() == 1)
+                    filename = fileList.get(0) + "." + type;
+
+                sendHeader(pout, 
+                    "200 OK", 
+                    Archive.getContentType(type), 
+                    -1, 
+                    "Content-Disposition: attachment; filename=\"" + 
+                        filename.replace("\"", "_") + "\"\r\n" +
+                    "Cache-Control: no-cache\r\n");
+                pout.flush();
+                if(method.equals("HEAD")) return;
+
+                BufferedOutputStream out = new BufferedOutputStream(response, 0x10000);
+                Archive.Writer writer = Archive.create(type, out, level);
+                try
+                {
+                    if(fileList == null)
+                        Archive.add(writer, new DirEntry(dir), dirName);
+                    else
+                    {
+                        for(int i = 0; i < fileList.size(); i++)
+                        {
+                            DirEntry entry = new DirEntry(dir + "/" + fileList.get(i));
+                            Archive.add(writer, entry, fileList.get(i));
+                        }
+                    }
+                    writer.finish();
+                    log(connection, "200 OK");
+                } catch(IOException e)
+                {
+// drop the last chunk so the client sees the archive was cut off
+                    Stuff.log("WebServerThread", "sendArchive: " + e);
+                    response.chunked = false;
+                    keepAlive = false;
+                }
+            } catch(Exception e)
+            {
+                Stuff.log("WebServerThread", "sendArchive: " + e);
+            }
+        }
+
+
+// writes search results as they're found
+        class SearchWriter implements SearchIndex.Results
+        {
+            Writer writer;
+            JsonListing json;
+            int limit;
+            int count = 0;
+            boolean more = false;
+// results can't throw, so the 1st error stops the search
+            IOException error;
+
+            SearchWriter(Writer writer, boolean isJson, int limit)
+            {
+                this.writer = writer;
+                if(isJson) json = new JsonListing(writer);
+                this.limit = limit;
+            }
+
+            public boolean found(DirEntry entry)
+            {
+                if(count >= limit)
+                {
+                    more = true;
+                    return false;
+                }
+                try
+                {
+                    if(json != null)
+                    {
+                        if(count > 0) writer.write(",\n");
+                        writer.write("{\"path\":");
+                        json.writeString(entry.path);
+                        writer.write(",\"size\":" + entry.size + 
+                            ",\"date\":" + entry.date + 
+                            ",\"isDir\":" + entry.isDir + "}");
+                    }
+                    else
+                    {
+                        String text = encodeHtml(entry.path, false);
+                        if(entry.isDir) text = "<B>" + text + "/</B>";
+                        writer.write("<A HREF=\"" + encodeHtml(entry.path, true) + "\">" + 
+                            text + "</A><BR>\r\n");
+                    }
+                } catch(IOException e)
+                {
+                    error = e;
+                    return false;
+                }
+                count++;
+                return true;
+            }
+        }
+
+
+// GET /__search?q=<text>&dir=<dir> finds files under dir by name.  q is part
+// of a name or a glob with * & ?.  format=json is for scripts.  Results go
+// out as they're found, up to limit.
+        void sendSearch() throws IOException
+        {
+            PrintStream pout = new PrintStream(response);
+            String text = query.get("q");
+            String dir = query.get("dir");
+            boolean isJson = "json".equals(query.get("format"));
+            int limit = Stuff.pageSize;
+            try
+            {
+                if(query.get("limit") != null) 
+                    limit = Integer.parseInt(query.get("limit"));
+            } catch(NumberFormatException e)
+            {
+                limit = -1;
+            }
+            if(text == null || limit < 0)
+            {
+                errorReport(pout, connection, "400", "Bad Request", 
+                    "Search with /__search?q=<name>&dir=<dir>&limit=<count>");
+                pout.flush();
+                return;
+            }
+
+            SearchIndex index = SearchIndex.current;
+            if(index == null)
+            {
+                errorReport(pout, connection, "503", "Service Unavailable", 
+                    Stuff.searchRoot.length() == 0 ? 
+                        "Search is off.  Set searchRoot to turn it on." :
+                        "The files are still being read.  Try again in a minute.");
+                pout.flush();
+                return;
+            }
+
+            String contentType = isJson ? "application/json" : "text/html";
+            String extra = "Cache-Control: no-cache\r\n";
+            String encoding = chooseEncoding(contentType, -1);
+            if(encoding != null) 
+                extra += "Content-Encoding: " + encoding + "\r\n";
+            sendHeader(pout, "200 OK", contentType, -1, extra);
+            pout.flush();
+            if(encoding != null) response.startEncoding(encoding, Stuff.compressLevel);
+
+            Writer writer = new BufferedWriter(new OutputStreamWriter(response, "UTF-8"), 8192);
+            SearchWriter results = new SearchWriter(writer, isJson, limit);
+            if(isJson)
+            {
+                writer.write("{\"query\":");
+                results.json.writeString(text);
+                writer.write(",\"results\":[\n");
+            }
+            else
+            {
+                writer.write("<B>Files named " + encodeHtml(text, false) + 
+                    " under " + encodeHtml(dir == null ? index.root.path : dir, false) + 
+                    "</B><P>\r\n");
+            }
+
+            long start = System.nanoTime();
+            index.search(text, dir, results);
+            if(results.error != null) throw results.error;
+            long ms = (System.nanoTime() - start) / 1000000;
+
+            if(isJson)
+            {
+                writer.write("\n],\"count\":" + results.count + 
+                    ",\"more\":" + results.more + "}\n");
+            }
+            else
+            {
+                writer.write("<P>" + results.count + 
+                    (results.more ? " shown.  There are more." : " found.") + 
+                    "  " + ms + "ms<BR>\r\n");
+            }
+            writer.flush();
+        }
+
+
+// GET /__log shows the log level.  /__log?level=debug changes it.
+        void sendLogLevel() throws IOException
+        {
+            String status = "200 OK";
+            String text = query.get("level");
+            if(text != null)
+            {
+                int level = Logger.parseLevel(text);
+                if(level < 0)
+                    status = "400 Bad Request";
+                else
+                {
+                    Logger.setLevel(level);
+                    Stuff.saveDefaults();
+                }
             }
+
+            byte[] page = ("level=" + Logger.NAMES[Logger.level] + "\n").getBytes("UTF-8");
+            PrintStream pout = new PrintStream(response);
+            sendHeader(pout, 
+                status, 
+                "text/plain; charset=utf-8", 
+                page.length, 
+                "Cache-Control: no-cache\r\n");
+            pout.flush();
+            response.write(page);
+        }
+
+
+        public void run()
+        {
+            try {
+				Logger.debug("WebServerThread", "run: running 1");
+                HttpInput in = new HttpInput(
+                    new Metrics.CountingInputStream(connection.getInputStream()));
+                OutputStream out = new BufferedOutputStream(connection.getOutputStream());
+                Metrics.connectionOpened();
+                try
+                {
+                    handleConnection(in, out);
+                } finally
+                {
+                    Metrics.connectionClosed();
+                }
+
+                Logger.debug("x", "WebServerThread.run: finished");
+                out.flush();
+            } catch(Exception e)
+            {
+                Stuff.log("x", "WebServerThread.run: " + e);
+            }
+
+            try
+            {
+                connection.close();
+            } catch(Exception e)
+            {
+            }
+        }
+
+// read requests from the connection & send the responses until
+// the connection can't be kept alive
+        void handleConnection(HttpInput in, OutputStream out)
+        {
+            for(int requests = 0; ; requests++)
+            {
+                try
+                {
+// wait this long for the next request on a kept alive connection
+                    connection.setSoTimeout(requests > 0 ? Stuff.keepAliveTimeout : 0);
+                    boolean result = handleRequest(in, out, requests);
+                    out.flush();
+                    if(!result) break;
+                } catch(IOException e)
+                {
+                    Stuff.log("WebServerThread", "handleConnection: " + e);
+                    break;
+                }
+            }
+        }
+
+// read 1 request & send the response.
+// Shared by the thread pool & the NIO server.
+// Returns true if the connection can be used for another request.
+        boolean handleRequest(HttpInput in, OutputStream out, int requests)
+            throws IOException
+        {
+            int status = in.readRequest(request);
+            if(status == HttpRequest.EOF) return false;
+            connection.setSoTimeout(0);
+            if(status != HttpRequest.OK)
+            {
+                PrintStream pout = new PrintStream(out);
+                if(status == HttpRequest.TOO_BIG)
+                    errorReport(pout, connection, "431", "Request Header Fields Too Large",
+                        "The request header is too big.");
+                else
+                    errorReport(pout, connection, "400", "Bad Request",
+                        "Couldn't read the request.");
+                pout.flush();
+                return false;
+            }
+
+            long startTime = System.nanoTime();
+            String req = request.method;
+            String path = request.path;
+            method = req;
+            route = null;
+            http11 = request.http11;
+            Logger.debug("x", 
+                "WebServerThread.run req={} path={}", 
+                req, 
+                request.target);
+
+            if(http11)
+                keepAlive = !request.hasConnection("close");
+            else
+                keepAlive = request.hasConnection("keep-alive");
+            if(requests + 1 >= Stuff.maxRequests) keepAlive = false;
+            response = new ResponseStream(out);
+
+// handle a sort command.  Android doesn't allow ? in regular filenames
+            query.clear();
+            if(request.query != null)
+            {
+                String[] params = request.query.split("&");
+                for(int i = 0; i < params.length; i++)
+                {
+                    String sort_command = params[i];
+                    Logger.debug("x", "WebServerThread.run 1 sort_command={}", sort_command);
+                    if(sort_command.startsWith("sort_") && sort_command.length() >= 8)
+                    {
+                        try
+                        {
+                            Stuff.sortOrder = Integer.valueOf(sort_command.substring(5, 6));
+                            int descending = Integer.valueOf(sort_command.substring(7, 8));
+                            if(descending == 0)
+                                Stuff.sortDescending = false;
+                            else
+                                Stuff.sortDescending = true;
+                            Stuff.saveDefaults();
+                        } catch(NumberFormatException e)
+                        {
+                        }
+                        continue;
+                    }
+
+// show or hide the directory totals
+                    if(sort_command.equals("dirsizes_0") || 
+                        sort_command.equals("dirsizes_1"))
+                    {
+                        Stuff.dirSizes = sort_command.endsWith("1");
+                        Stuff.saveDefaults();
+                        continue;
+                    }
+
+                    int equals = sort_command.indexOf('=');
+                    try
+                    {
+                        if(equals < 0)
+                            query.put(sort_command, "");
+                        else
+                            query.put(sort_command.substring(0, equals),
+                                URLDecoder.decode(sort_command.substring(equals + 1), "UTF-8"));
+                    } catch(IllegalArgumentException e)
+                    {
+                    }
+                }
+            }
+
+// /api/list/<dir> is the same as <dir>?format=json
+            if(path.equals("/api/list") || path.startsWith("/api/list/"))
+            {
+                path = path.substring(9);
+                if(path.length() == 0) path = "/";
+                query.put("format", "json");
+            }
+
+// strip ending /
+            while (path.length() > 1 &&
+                    path.lastIndexOf('/') == path.length() - 1) {
+                path = path.substring(0, path.length() - 1);
+            }
+
+// curl waits for this before sending a big body
+            String expect = request.get("expect");
+            if(http11 && expect != null && expect.equalsIgnoreCase("100-continue"))
+            {
+                out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes());
+                out.flush();
+            }
+
+// a resumable upload
+            if(query.get("upload") != null ||
+                (req.equals("POST") && request.get("upload-length") != null))
+            {
+                route = "resumable";
+                handleResumable(path, query.get("upload"), in);
+            }
+            else
+// write the body to a file
+            if (req.equals("PUT")) 
+            {
+                route = "put";
+                handlePut(path, in);
+            }
+            else
+            if (req.equals("GET") && path.equals("/__metrics")) 
+            {
+                route = "metrics";
+                sendMetrics();
+            }
+            else
+            if (req.equals("GET") && path.equals("/__log")) 
+            {
+                route = "log";
+                sendLogLevel();
+            }
+            else
+            if (req.equals("GET") && path.equals("/__search")) 
+            {
+                route = "search";
+                sendSearch();
+            }
+            else
+// get the file.  HEAD goes through the same code without the body.
+            if (req.equals("GET") || req.equals("HEAD")) 
+            {
+                sendFiles(path, response);
+            }
+            else
+// handle a form
+            if (req.equals("POST")) 
+            {
+                route = "post";
+                if(request.contentLength < 0)
+                {
+// can't tell where the body ends
+                    keepAlive = false;
+//                    dumpPost(path, in);
+                    handlePost(path, response, in);
+                }
+                else
+                {
+                    BodyInputStream body = new BodyInputStream(in, request.contentLength);
+                    handlePost(path, response, body);
+                    body.drain();
+                }
+            }
+            else
+            {
+                route = "other";
+                sendNotAllowed(req);
+            }
+
+            response.finish();
+// the handler didn't send a response
+            if(response.total == 0) keepAlive = false;
+            Metrics.request(route == null ? "other" : route, 
+                response.status, 
+                System.nanoTime() - startTime, 
+                response.total);
+            return keepAlive;
         }
     }
 
@@ -0,0 +1,492 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+
+// Writes a ZIP archive to a stream as the files are read.  Nothing is
+// seeked, so each entry has a data descriptor after its data with the CRC
+// & sizes.  Media which is already compressed is STORED.  Everything else
+// is deflated.  Big files are deflated in 128k blocks on several threads
+// like pigz.  Each block is primed with the last 32k of the one before so
+// the output is the same size as deflating on 1 thread.  Sizes & offsets
+// past 4GB & more than 65535 entries use the ZIP64 extensions.
+
+class ZipStream implements Archive.Writer
+{
+// deflate blocks for the parallel compressor
+    static final int BLOCK_SIZE = 0x20000;
+    static final int DICTIONARY_SIZE = 0x8000;
+    static final long ZIP64_LIMIT = 0xffffffffL;
+// a file this big gets a ZIP64 local header since deflate can grow it a little
+    static final long ZIP64_FILE = 0xff000000L;
+
+// extensions of files which won't get smaller
+    static final HashSet<String> COMPRESSED = new HashSet<String>(Arrays.asList(
+        "jpg", "jpeg", "png", "gif", "webp", "heic", "heif", "avif",
+        "mp4", "m4v", "mkv", "mov", "webm", "3gp", "avi",
+        "mp3", "m4a", "aac", "ogg", "oga", "opus", "flac", "wma",
+        "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4",
+        "apk", "jar", "aab", "docx", "xlsx", "pptx", "odt", "epub", "pdf"));
+
+// the deflate threads, shared by every archive
+    static ExecutorService compressors;
+// Deflater.deflate with a flush mode is needed to split a stream into blocks.
+// Android has it from 4.4.
+    static boolean haveSyncFlush = checkSyncFlush();
+
+    static class Entry
+    {
+        byte[] name;
+        boolean isDir;
+        boolean deflated;
+        boolean zip64;
+        long crc;
+        long size;
+        long compressedSize;
+        long offset;
+        int dosTime;
+        int mode;
+    }
+
+    OutputStream out;
+// bytes written so far for the offsets
+    long position = 0;
+// the central directory
+    Vector<Entry> entries = new Vector<Entry>();
+// deflate level or 0 to store everything
+    int level;
+    int threads;
+
+    ZipStream(OutputStream out, int level, int threads)
+    {
+        this.out = out;
+        this.level = level;
+        this.threads = haveSyncFlush ? threads : 1;
+    }
+
+    static boolean checkSyncFlush()
+    {
+        try
+        {
+            Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+            return true;
+        } catch(Throwable e)
+        {
+            return false;
+        }
+    }
+
+    static synchronized ExecutorService getCompressors()
+    {
+        if(compressors == null)
+        {
+            compressors = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(),
+                new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, "ZipStream");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return compressors;
+    }
+
+    static boolean isCompressed(String name)
+    {
+        int dot = name.lastIndexOf('.');
+        if(dot < 0) return false;
+        return COMPRESSED.contains(name.substring(dot + 1).toLowerCase());
+    }
+
+    void write(byte[] data, int offset, int length) throws IOException
+    {
+        out.write(data, offset, length);
+        position += length;
+    }
+
+    void writeShort(int x) throws IOException
+    {
+        out.write(x & 0xff);
+        out.write((x >> 8) & 0xff);
+        position += 2;
+    }
+
+    void writeInt(long x) throws IOException
+    {
+        writeShort((int)(x & 0xffff));
+        writeShort((int)((x >> 16) & 0xffff));
+    }
+
+    void writeLong(long x) throws IOException
+    {
+        writeInt(x & 0xffffffffL);
+        writeInt(x >>> 32);
+    }
+
+// MS-DOS date & time in local time.  Nothing before 1980.
+    static int dosTime(long date)
+    {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(date);
+        int year = calendar.get(Calendar.YEAR);
+        if(year < 1980) return (1 << 21) | (1 << 16);
+        return ((year - 1980) << 25) |
+            ((calendar.get(Calendar.MONTH) + 1) << 21) |
+            (calendar.get(Calendar.DAY_OF_MONTH) << 16) |
+            (calendar.get(Calendar.HOUR_OF_DAY) << 11) |
+            (calendar.get(Calendar.MINUTE) << 5) |
+            (calendar.get(Calendar.SECOND) >> 1);
+    }
+
+    Entry startEntry(String name, boolean isDir, long date, boolean deflated, long size) 
+        throws IOException
+    {
+        Entry entry = new Entry();
+        entry.name = name.getBytes(StandardCharsets.UTF_8);
+        entry.isDir = isDir;
+        entry.deflated = deflated;
+        entry.zip64 = size >= ZIP64_FILE;
+        entry.offset = position;
+        entry.dosTime = dosTime(date);
+        entry.mode = isDir ? 040755 : 0100644;
+        entries.add(entry);
+
+// local header
+        writeInt(0x04034b50);
+        writeShort(entry.zip64 ? 45 : 20);
+// UTF-8 names & a data descriptor for files
+        writeShort(0x800 | (isDir ? 0 : 0x8));
+        writeShort(deflated ? 8 : 0);
+        writeInt(entry.dosTime & 0xffffffffL);
+// the CRC & sizes come in the data descriptor
+        writeInt(0);
+        writeInt(entry.zip64 ? ZIP64_LIMIT : 0);
+        writeInt(entry.zip64 ? ZIP64_LIMIT : 0);
+        writeShort(entry.name.length);
+        writeShort(entry.zip64 ? 20 : 0);
+        write(entry.name, 0, entry.name.length);
+        if(entry.zip64)
+        {
+            writeShort(1);
+            writeShort(16);
+            writeLong(0);
+            writeLong(0);
+        }
+        return entry;
+    }
+
+    public void addDirectory(String name, long date) throws IOException
+    {
+        startEntry(name.endsWith("/") ? name : name + "/", true, date, false, 0);
+    }
+
+// copy size bytes from in.  The size is what the file had when it was
+// listed.  If it changes, what's actually read goes in the archive.
+    public void addFile(String name, long date, long size, InputStream in) throws IOException
+    {
+        boolean deflated = level > 0 && !isCompressed(name);
+        Entry entry = startEntry(name, false, date, deflated, size);
+        CRC32 crc = new CRC32();
+        long start = position;
+
+        if(!deflated)
+        {
+            byte[] buffer = WebServer.getBuffer();
+            try
+            {
+                while(true)
+                {
+                    int result = in.read(buffer);
+                    if(result < 0) break;
+                    crc.update(buffer, 0, result);
+                    write(buffer, 0, result);
+                    entry.size += result;
+                }
+            } finally
+            {
+                WebServer.putBuffer(buffer);
+            }
+        }
+        else
+        if(threads > 1 && size > 2 * BLOCK_SIZE)
+            deflateParallel(entry, crc, in);
+        else
+            deflate(entry, crc, in);
+
+        entry.crc = crc.getValue();
+        entry.compressedSize = position - start;
+        if(!entry.zip64 && 
+            (entry.size >= ZIP64_LIMIT || entry.compressedSize >= ZIP64_LIMIT))
+            throw new IOException(name + " grew past 4GB while it was read");
+
+// data descriptor
+        writeInt(0x08074b50);
+        writeInt(entry.crc);
+        if(entry.zip64)
+        {
+            writeLong(entry.compressedSize);
+            writeLong(entry.size);
+        }
+        else
+        {
+            writeInt(entry.compressedSize);
+            writeInt(entry.size);
+        }
+    }
+
+// deflate on this thread
+    void deflate(Entry entry, CRC32 crc, InputStream in) throws IOException
+    {
+        Deflater deflater = new Deflater(level, true);
+        byte[] buffer = WebServer.getBuffer();
+        byte[] output = WebServer.getBuffer();
+        try
+        {
+            while(true)
+            {
+                int result = in.read(buffer);
+                if(result < 0) break;
+                crc.update(buffer, 0, result);
+                entry.size += result;
+                deflater.setInput(buffer, 0, result);
+                while(!deflater.needsInput())
+                {
+                    int length = deflater.deflate(output);
+                    write(output, 0, length);
+                }
+            }
+            deflater.finish();
+            while(!deflater.finished())
+            {
+                int length = deflater.deflate(output);
+                write(output, 0, length);
+            }
+        } finally
+        {
+            deflater.end();
+            WebServer.putBuffer(buffer);
+            WebServer.putBuffer(output);
+        }
+    }
+
+// 1 block for a compressor thread
+    class Block implements Callable<byte[]>
+    {
+        byte[] data;
+        int size;
+        byte[] dictionary;
+        boolean last;
+
+        public byte[] call()
+        {
+            Deflater deflater = new Deflater(level, true);
+            try
+            {
+                if(dictionary != null) deflater.setDictionary(dictionary);
+                deflater.setInput(data, 0, size);
+                ByteArrayOutputStream result = new ByteArrayOutputStream(size / 2 + 64);
+                byte[] output = new byte[size + 64];
+                if(last)
+                {
+                    deflater.finish();
+                    while(!deflater.finished())
+                        result.write(output, 0, deflater.deflate(output));
+                }
+                else
+                {
+// ends on a byte boundary without the final bit so the next block follows it
+                    while(true)
+                    {
+                        int length = deflater.deflate(output, 0, output.length, Deflater.SYNC_FLUSH);
+                        result.write(output, 0, length);
+                        if(length < output.length) break;
+                    }
+                }
+                return result.toByteArray();
+            } finally
+            {
+                deflater.end();
+            }
+        }
+    }
+
+// read blocks on this thread, deflate them on the compressors & write
+// them in order.  At most 2 blocks per thread are in memory.
+    void deflateParallel(Entry entry, CRC32 crc, InputStream in) throws IOException
+    {
+        ExecutorService pool = getCompressors();
+        ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        byte[] previous = null;
+        int previousSize = 0;
+        boolean eof = false;
+        try
+        {
+            while(!eof || !pending.isEmpty())
+            {
+                if(!eof && pending.size() < threads * 2)
+                {
+                    Block block = new Block();
+                    block.data = new byte[BLOCK_SIZE];
+                    while(block.size < BLOCK_SIZE)
+                    {
+                        int result = in.read(block.data, block.size, BLOCK_SIZE - block.size);
+                        if(result < 0)
+                        {
+                            eof = true;
+                            break;
+                        }
+                        block.size += result;
+                    }
+                    crc.update(block.data, 0, block.size);
+                    entry.size += block.size;
+                    if(previous != null)
+                    {
+                        int length = Math.min(previousSize, DICTIONARY_SIZE);
+                        block.dictionary = Arrays.copyOfRange(previous, 
+                            previousSize - length, 
+                            previousSize);
+                    }
+                    block.last = eof;
+                    pending.add(pool.submit(block));
+                    previous = block.data;
+                    previousSize = block.size;
+                    continue;
+                }
+
+                byte[] result = pending.remove().get();
+                write(result, 0, result.length);
+            }
+        } catch(InterruptedException e)
+        {
+            throw new IOException(e.toString());
+        } catch(ExecutionException e)
+        {
+            throw new IOException(e.getCause().toString());
+        } finally
+        {
+            for(Future<byte[]> future : pending) future.cancel(false);
+        }
+    }
+
+// the central directory & the end records
+    public void finish() throws IOException
+    {
+        long directoryStart = position;
+        for(int i = 0; i < entries.size(); i++)
+        {
+            Entry entry = entries.get(i);
+            boolean bigSize = entry.size >= ZIP64_LIMIT || 
+                entry.compressedSize >= ZIP64_LIMIT;
+            boolean bigOffset = entry.offset >= ZIP64_LIMIT;
+            int extra = (bigSize ? 16 : 0) + (bigOffset ? 8 : 0);
+
+            writeInt(0x02014b50);
+// made by unix so the modes are kept
+            writeShort((3 << 8) | (extra > 0 ? 45 : 20));
+            writeShort(extra > 0 || entry.zip64 ? 45 : 20);
+            writeShort(0x800 | (entry.isDir ? 0 : 0x8));
+            writeShort(entry.deflated ? 8 : 0);
+            writeInt(entry.dosTime & 0xffffffffL);
+            writeInt(entry.crc);
+            writeInt(bigSize ? ZIP64_LIMIT : entry.compressedSize);
+            writeInt(bigSize ? ZIP64_LIMIT : entry.size);
+            writeShort(entry.name.length);
+            writeShort(extra > 0 ? extra + 4 : 0);
+// comment, disk, internal attributes
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            writeInt(((long)entry.mode << 16) | (entry.isDir ? 0x10 : 0));
+            writeInt(bigOffset ? ZIP64_LIMIT : entry.offset);
+            write(entry.name, 0, entry.name.length);
+            if(extra > 0)
+            {
+                writeShort(1);
+                writeShort(extra);
+                if(bigSize)
+                {
+                    writeLong(entry.size);
+                    writeLong(entry.compressedSize);
+                }
+                if(bigOffset) writeLong(entry.offset);
+            }
+        }
+        long directorySize = position - directoryStart;
+        long total = entries.size();
+
+        boolean zip64 = total >= 0xffff || 
+            directorySize >= ZIP64_LIMIT || 
+            directoryStart >= ZIP64_LIMIT;
+        if(zip64)
+        {
+            long recordStart = position;
+            writeInt(0x06064b50);
+            writeLong(44);
+            writeShort((3 << 8) | 45);
+            writeShort(45);
+            writeInt(0);
+            writeInt(0);
+            writeLong(total);
+            writeLong(total);
+            writeLong(directorySize);
+            writeLong(directoryStart);
+// locator
+            writeInt(0x07064b50);
+            writeInt(0);
+            writeLong(recordStart);
+            writeInt(1);
+        }
+
+        writeInt(0x06054b50);
+        writeShort(0);
+        writeShort(0);
+        writeShort(zip64 ? 0xffff : (int)total);
+        writeShort(zip64 ? 0xffff : (int)total);
+        writeInt(zip64 ? ZIP64_LIMIT : directorySize);
+        writeInt(zip64 ? ZIP64_LIMIT : directoryStart);
+        writeShort(0);
+        out.flush();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+
+// Shared by the benchmarks
+
+class Bench
+{
+// throws away the output
+    static class NullStream extends OutputStream
+    {
+        public void write(int b)
+        {
+        }
+
+        public void write(byte[] b, int off, int len)
+        {
+        }
+    }
+
+// the messages still go through the Logger ring at the default level,
+// like on the phone, but the console doesn't get timed
+    static void quiet()
+    {
+        Logger.sink = new Logger.Sink()
+        {
+            public void write(int level, String tag, String message)
+            {
+            }
+
+            public void flush()
+            {
+            }
+        };
+    }
+
+    static final String BOUNDARY = "----WebKitFormBoundaryq8DfkQ7e2Lr5vZxA";
+
+// a form post with a __CHECKED field for each name & the button.
+// The names should be encodeHtml'd like the browser sends them.
+    static byte[] formBody(String[] names)
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for(int i = 0; i < names.length; i++)
+            addField(body, names[i], "__CHECKED");
+        addField(body, "__DELETE", "__DELETE");
+        addText(body, "--" + BOUNDARY + "--\r\n");
+        return body.toByteArray();
+    }
+
+// a form post with 1 file of size bytes
+    static byte[] uploadBody(int size)
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        addText(body, "--" + BOUNDARY + "\r\n" +
+            "Content-Disposition: form-data; name=\"__UPLOAD\"; filename=\"IMG_20240501_120000.jpg\"\r\n" +
+            "Content-Type: image/jpeg\r\n\r\n");
+// pseudo random bytes with plenty of \r\n- to make the search work
+        byte[] data = new byte[size];
+        long x = 1;
+        for(int i = 0; i < size; i++)
+        {
+            x = x * 6364136223846793005L + 1442695040888963407L;
+            data[i] = (byte)(x >>> 56);
+            if((x & 0xfff) == 0) data[i] = '\r';
+        }
+        body.write(data, 0, data.length);
+        addText(body, "\r\n");
+        addField(body, "__UPLOAD", "UPLOAD");
+        addText(body, "--" + BOUNDARY + "--\r\n");
+        return body.toByteArray();
+    }
+
+    static void addField(ByteArrayOutputStream body, String name, String value)
+    {
+        addText(body, "--" + BOUNDARY + "\r\n" +
+            "Content-Disposition: form-data; name=\"" + name + "\"\r\n\r\n" +
+            value + "\r\n");
+    }
+
+    static void addText(ByteArrayOutputStream body, String text)
+    {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        body.write(bytes, 0, bytes.length);
+    }
+}
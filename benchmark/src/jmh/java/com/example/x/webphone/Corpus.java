@@ -0,0 +1,119 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+
+// Filenames like the ones on a phone for the benchmarks.  Camera & download
+// names, numbered files, accented, Cyrillic, CJK & emoji names & a few very
+// long ones.  The same seed always makes the same names.
+
+class Corpus
+{
+// written as escapes so any javac encoding reads them
+    static final String[] WORDS =
+    {
+        "holiday", "invoice", "notes", "backup", "draft", "final", "copy", "IMG",
+// accented Latin
+        "M\u00fcller", "\u00dcberweisung", "caf\u00e9", "r\u00e9sum\u00e9",
+// Cyrillic
+        "\u0424\u043e\u0442\u043e\u0433\u0440\u0430\u0444\u0438\u044f",
+        "\u0434\u043e\u043a\u0443\u043c\u0435\u043d\u0442",
+// Japanese, Korean & Arabic
+        "\u5199\u771f", "\u6771\u4eac\u30bf\u30ef\u30fc", "\uc0ac\uc9c4",
+        "\u0642\u0627\u0626\u0645\u0629",
+// emoji outside the BMP
+        "\ud83c\udf89", "\ud83d\udcf7"
+    };
+
+    static final String[] EXTENSIONS =
+    {
+        ".jpg", ".mp4", ".pdf", ".txt", ".png", ".mp3", ".zip", ""
+    };
+
+    static String[] names(int count, long seed)
+    {
+        Random random = new Random(seed);
+        String[] result = new String[count];
+        for(int i = 0; i < count; i++)
+        {
+            String extension = EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+            switch(random.nextInt(5))
+            {
+// camera
+                case 0:
+                    result[i] = String.format("IMG_2024%02d%02d_%06d",
+                        random.nextInt(12) + 1,
+                        random.nextInt(28) + 1,
+                        random.nextInt(1000000)) + extension;
+                    break;
+// numbered
+                case 1:
+                    result[i] = "file" + random.nextInt(100000) + extension;
+                    break;
+// long but under the 255 byte limit of most filesystems
+                case 2:
+                {
+                    StringBuilder name = new StringBuilder();
+                    while(name.toString().getBytes(StandardCharsets.UTF_8).length < 200)
+                        name.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                    result[i] = name.toString().trim() + extension;
+                    break;
+                }
+// a few words
+                default:
+                {
+                    StringBuilder name = new StringBuilder();
+                    int words = random.nextInt(4) + 1;
+                    for(int j = 0; j < words; j++)
+                    {
+                        if(j > 0) name.append(random.nextBoolean() ? ' ' : '_');
+                        name.append(WORDS[random.nextInt(WORDS.length)]);
+                    }
+                    name.append(' ').append(random.nextInt(100));
+                    result[i] = name.toString() + extension;
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+// entries with made up sizes & dates
+    static DirEntry[] entries(int count, long seed)
+    {
+        String[] names = names(count, seed);
+        Random random = new Random(seed);
+        DirEntry[] result = new DirEntry[count];
+        for(int i = 0; i < count; i++)
+        {
+            result[i] = new DirEntry("/sdcard/DCIM/" + names[i],
+                names[i],
+                random.nextInt(10) == 0,
+                random.nextInt(1 << 24),
+                1600000000000L + random.nextInt(1 << 30) * 100L);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+// encodeHtml & decodeHtml over 1000 names.  Every name in a listing goes
+// through encodeHtml twice & every form field through decodeHtml.
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HtmlBenchmark
+{
+    WebServer.WebServerThread thread;
+    String[] names;
+    String[] encoded;
+
+    @Setup
+    public void setup()
+    {
+        Bench.quiet();
+        thread = new WebServer().new WebServerThread(null);
+        names = Corpus.names(1000, 1);
+        encoded = new String[names.length];
+        for(int i = 0; i < names.length; i++)
+            encoded[i] = thread.encodeHtml(names[i], false);
+    }
+
+    @Benchmark
+    public void encodeText(Blackhole blackhole)
+    {
+        for(int i = 0; i < names.length; i++)
+            blackhole.consume(thread.encodeHtml(names[i], false));
+    }
+
+    @Benchmark
+    public void encodeHref(Blackhole blackhole)
+    {
+        for(int i = 0; i < names.length; i++)
+            blackhole.consume(thread.encodeHtml(names[i], true));
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole)
+    {
+        for(int i = 0; i < encoded.length; i++)
+            blackhole.consume(thread.decodeHtml(encoded[i]));
+    }
+}
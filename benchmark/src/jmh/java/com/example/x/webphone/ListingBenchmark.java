@@ -0,0 +1,111 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+
+// A whole directory listing from sendFiles into a null stream.  The
+// directory is real, so this includes reading it.  The listing cache is
+// cleared before each one.  Needs a UTF-8 locale to make the Unicode names.
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ListingBenchmark
+{
+    @Param({"100", "10000"})
+    int files;
+
+// Accept-Encoding
+    @Param({"", "gzip"})
+    String encoding;
+
+    File dir;
+    WebServer.WebServerThread thread;
+    Bench.NullStream nullStream = new Bench.NullStream();
+
+    @Setup
+    public void setup() throws IOException
+    {
+        Bench.quiet();
+        dir = Files.createTempDirectory("webphone-bench").toFile();
+        String[] names = Corpus.names(files, 5);
+        HashSet<String> made = new HashSet<String>();
+        for(int i = 0; i < names.length; i++)
+        {
+            if(!made.add(names[i])) continue;
+            File file = new File(dir, names[i]);
+            try
+            {
+                if(i % 10 == 0)
+                    file.mkdir();
+                else
+                    file.createNewFile();
+                file.setLastModified(1600000000000L + i * 1000L);
+            } catch(IOException e)
+            {
+// the filesystem didn't take the name
+            }
+        }
+
+        thread = new WebServer().new WebServerThread(null);
+        thread.method = "GET";
+        thread.http11 = true;
+        if(encoding.length() > 0) thread.request.acceptEncoding = encoding;
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        File[] list = dir.listFiles();
+        if(list != null)
+            for(int i = 0; i < list.length; i++) list[i].delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public long render() throws IOException
+    {
+        WebServer.listings.invalidate(dir.getPath());
+        thread.route = null;
+        thread.keepAlive = true;
+        thread.response = new WebServer.ResponseStream(nullStream);
+        thread.sendFiles(dir.getPath(), thread.response);
+        thread.response.finish();
+        return thread.response.total;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+// Reading requests: the header, the multipart boundary scan of an upload
+// & the form fields of a listing with many files checked.
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParseBenchmark
+{
+// requests in 1 pipelined read
+    static final int REQUESTS = 100;
+
+    WebServer.WebServerThread thread;
+    byte[] requests;
+    HttpRequest request = new HttpRequest();
+    Bench.NullStream nullStream = new Bench.NullStream();
+
+// the sizes are only params of the benchmarks which use them
+    @State(Scope.Thread)
+    public static class Upload
+    {
+// bytes in the uploaded file
+        @Param({"65536", "4194304"})
+        int size;
+        byte[] body;
+
+        @Setup
+        public void setup()
+        {
+            body = Bench.uploadBody(size);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Form
+    {
+// checked files in the form
+        @Param({"10", "500"})
+        int fields;
+        byte[] body;
+
+        @Setup
+        public void setup()
+        {
+            WebServer.WebServerThread thread = new WebServer().new WebServerThread(null);
+            String[] names = Corpus.names(fields, 3);
+            for(int i = 0; i < names.length; i++)
+                names[i] = thread.encodeHtml("/sdcard/DCIM/" + names[i], false);
+            body = Bench.formBody(names);
+        }
+    }
+
+    @Setup
+    public void setup()
+    {
+        Bench.quiet();
+        thread = new WebServer().new WebServerThread(null);
+
+// a browser request for a file with a Unicode name
+        String name = Corpus.names(1, 2)[0];
+        String header = "GET /sdcard/DCIM/" + thread.encodeHtml(name, true) + " HTTP/1.1\r\n" +
+            "Host: 192.168.1.20:8080\r\n" +
+            "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n" +
+            "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n" +
+            "Accept-Language: en-US,en;q=0.5\r\n" +
+            "Accept-Encoding: gzip, deflate\r\n" +
+            "Connection: keep-alive\r\n" +
+            "Referer: http://192.168.1.20:8080/sdcard/DCIM\r\n" +
+            "If-None-Match: W/\"18f2a3b4c5d-0-0\"\r\n" +
+            "Upgrade-Insecure-Requests: 1\r\n" +
+            "\r\n";
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] bytes = header.getBytes(StandardCharsets.ISO_8859_1);
+        for(int i = 0; i < REQUESTS; i++) data.write(bytes, 0, bytes.length);
+        requests = data.toByteArray();
+    }
+
+    @Benchmark
+    public int readRequest() throws IOException
+    {
+        HttpInput in = new HttpInput(new ByteArrayInputStream(requests));
+        int total = 0;
+        while(in.readRequest(request) == HttpRequest.OK) total += request.path.length();
+        return total;
+    }
+
+// skipBoundary, getContentDisposition & getData for the file like handlePost
+    @Benchmark
+    public boolean scanUpload(Upload upload)
+    {
+        MultipartScanner in = new MultipartScanner(new ByteArrayInputStream(upload.body), 
+            Bench.BOUNDARY);
+        thread.skipBoundary(in);
+        thread.getContentDisposition(in);
+        return thread.getData(in, nullStream);
+    }
+
+// every field of the form through getContentValue & decodeHtml
+    @Benchmark
+    public void readForm(Form form, Blackhole blackhole)
+    {
+        MultipartScanner in = new MultipartScanner(new ByteArrayInputStream(form.body), 
+            Bench.BOUNDARY);
+        thread.skipBoundary(in);
+        while(true)
+        {
+            Map<String, String> disposition = thread.getContentDisposition(in);
+            String name = disposition.get("name");
+            if(name.equals("")) break;
+            Map<String, String> result = thread.getContentValue(in);
+            blackhole.consume(thread.decodeHtml(name));
+            blackhole.consume(result.get("value"));
+            if(result.get("eof") != null) break;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+// The SortBy comparators sorting a whole directory on 1 thread & the
+// ListingPage selection of the 1st page.  Each op copies the unsorted
+// entries first, which is the same for every comparator.
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SortBenchmark
+{
+    @Param({"1000", "100000"})
+    int count;
+
+// Stuff.SORT_PATH, SORT_SIZE or SORT_DATE
+    @Param({"0", "1", "2"})
+    int order;
+
+    @Param({"true", "false"})
+    boolean natural;
+
+    DirEntry[] entries;
+    DirEntry[] work;
+    Comparator<DirEntry> comparator;
+
+    @Setup
+    public void setup()
+    {
+        Bench.quiet();
+        entries = Corpus.entries(count, 4);
+        work = new DirEntry[count];
+        switch(order)
+        {
+            case Stuff.SORT_SIZE:
+                comparator = new WebServer.SortBySize(false, natural);
+                break;
+            case Stuff.SORT_DATE:
+                comparator = new WebServer.SortByDate(false, natural);
+                break;
+            default:
+                comparator = new WebServer.SortByName(false, natural);
+                break;
+        }
+    }
+
+    @Benchmark
+    public DirEntry[] sort()
+    {
+        System.arraycopy(entries, 0, work, 0, count);
+        Arrays.sort(work, comparator);
+        return work;
+    }
+
+// what sendFiles does: keep the first page while visiting every entry
+    @Benchmark
+    public ListingPage firstPage()
+    {
+        ListingPage page = new ListingPage(comparator, null, false, Stuff.pageSize);
+        for(int i = 0; i < count; i++) page.visit(entries[i]);
+        page.finish();
+        return page;
+    }
+}
@@ -0,0 +1,561 @@
+/*
+ * WEBPHONE
+ * Copyright (C) 2020-2026 Adam Williams <broadcast at earthling dot net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.example.x.webphone;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+
+// Load test of the standalone server over loopback.  Starts Stuff.main
+// in another JVM on a temporary directory tree & runs worker threads
+// against it for a fixed time.  The workloads are browse, which gets
+// directory listings & changes the sort order, download, which gets
+// big files & upload, which posts files with the same form as the
+// listing.  mixed does all 3.
+//
+// Prints requests/s, MB/s, latency percentiles & errors for each kind
+// of request.  -save writes them to a file & -baseline compares with one.
+// -ramp doubles the threads from 1 to -threads to show where it stops
+// scaling.
+//
+// java -cp <standalone & load classes> com.example.x.webphone.LoadTest
+//     [-workload browse|download|upload|mixed] [-threads N] [-seconds N]
+//     [-warmup N] [-port N] [-nio] [-ramp] [-save file] [-baseline file]
+
+public class LoadTest
+{
+    static final int BROWSE = 0;
+    static final int DOWNLOAD = 1;
+    static final int UPLOAD = 2;
+    static final String[] TYPES = { "browse", "download", "upload" };
+// share of each type in the mixed workload in percent
+    static final int[] MIX = { 70, 20, 10 };
+
+    static String workload = "mixed";
+    static int threads = 8;
+    static int seconds = 20;
+    static int warmup = 5;
+    static int port = 8089;
+    static boolean nio = false;
+    static boolean ramp = false;
+    static String savePath;
+    static String baselinePath;
+// the tree
+    static int dirs = 8;
+    static int filesPerDir = 3000;
+    static int bigFiles = 4;
+    static long bigFileSize = 32L << 20;
+    static long uploadSize = 8L << 20;
+
+    static File root;
+    static String baseUrl;
+
+// set by the main thread
+    static volatile boolean measuring;
+    static volatile boolean stopping;
+
+
+// latencies & totals of 1 type of request
+    static class Stats
+    {
+        long[] latencies = new long[1024];
+        int count = 0;
+        long errors = 0;
+        long bytes = 0;
+
+        void add(long nanos, long size)
+        {
+            if(count >= latencies.length)
+                latencies = Arrays.copyOf(latencies, latencies.length * 2);
+            latencies[count++] = nanos;
+            bytes += size;
+        }
+
+        void merge(Stats other)
+        {
+            for(int i = 0; i < other.count; i++) add(other.latencies[i], 0);
+            bytes += other.bytes;
+            errors += other.errors;
+        }
+
+// in milliseconds.  Only after sort.
+        double percentile(double fraction)
+        {
+            if(count == 0) return 0;
+            int i = (int)Math.ceil(fraction * count) - 1;
+            if(i < 0) i = 0;
+            return latencies[i] / 1e6;
+        }
+
+        void sort()
+        {
+            Arrays.sort(latencies, 0, count);
+        }
+    }
+
+
+    static class Worker extends Thread
+    {
+        Stats[] stats = { new Stats(), new Stats(), new Stats() };
+        Random random;
+        byte[] buffer = new byte[65536];
+        int id;
+        int uploads = 0;
+
+        Worker(int id)
+        {
+            this.id = id;
+            random = new Random(id);
+        }
+
+        int choose()
+        {
+            if(workload.equals("browse")) return BROWSE;
+            if(workload.equals("download")) return DOWNLOAD;
+            if(workload.equals("upload")) return UPLOAD;
+            int x = random.nextInt(100);
+            for(int i = 0; i < MIX.length; i++)
+            {
+                if(x < MIX[i]) return i;
+                x -= MIX[i];
+            }
+            return BROWSE;
+        }
+
+        public void run()
+        {
+            while(!stopping)
+            {
+                int type = choose();
+                boolean counted = measuring;
+                long start = System.nanoTime();
+                long size;
+                try
+                {
+                    switch(type)
+                    {
+                        case DOWNLOAD:
+                            size = download();
+                            break;
+                        case UPLOAD:
+                            size = upload();
+                            break;
+                        default:
+                            size = browse();
+                            break;
+                    }
+                } catch(IOException e)
+                {
+                    if(counted && measuring) stats[type].errors++;
+                    continue;
+                }
+                long time = System.nanoTime() - start;
+// only requests which started & ended while measuring
+                if(counted && measuring) stats[type].add(time, size);
+            }
+        }
+
+// a listing, sometimes changing the sort order like the column links
+        long browse() throws IOException
+        {
+            String url = baseUrl + root.getPath() + "/browse/d" + random.nextInt(dirs);
+            if(random.nextInt(5) == 0)
+                url += "?sort_" + random.nextInt(3) + "_" + random.nextInt(2);
+            HttpURLConnection connection = open(url);
+            return finish(connection, -1);
+        }
+
+        long download() throws IOException
+        {
+            String url = baseUrl + root.getPath() + "/download/big" + random.nextInt(bigFiles) + ".bin";
+            HttpURLConnection connection = open(url);
+            return finish(connection, bigFileSize);
+        }
+
+// the form the listing page posts.  The file is deleted after so the
+// disk doesn't fill up.
+        long upload() throws IOException
+        {
+            String boundary = "----LoadTestBoundary" + id;
+            String name = "up" + id + "-" + (uploads++) + ".bin";
+            byte[] head = ("--" + boundary + "\r\n" +
+                "Content-Disposition: form-data; name=\"__UPLOAD\"; filename=\"" + name + "\"\r\n" +
+                "Content-Type: application/octet-stream\r\n\r\n").getBytes("UTF-8");
+            byte[] tail = ("\r\n--" + boundary + "\r\n" +
+                "Content-Disposition: form-data; name=\"__UPLOAD\"\r\n\r\n" +
+                "UPLOAD\r\n" +
+                "--" + boundary + "--\r\n").getBytes("UTF-8");
+
+            HttpURLConnection connection = open(baseUrl + root.getPath() + "/upload");
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", 
+                "multipart/form-data; boundary=" + boundary);
+            connection.setFixedLengthStreamingMode(head.length + uploadSize + tail.length);
+            OutputStream out = connection.getOutputStream();
+            out.write(head);
+            random.nextBytes(buffer);
+            for(long written = 0; written < uploadSize; )
+            {
+                int fragment = (int)Math.min(buffer.length, uploadSize - written);
+                out.write(buffer, 0, fragment);
+                written += fragment;
+            }
+            out.write(tail);
+            out.close();
+            finish(connection, -1);
+
+            File file = new File(root, "upload/" + name);
+            if(file.length() != uploadSize)
+                throw new IOException("upload " + name + " has " + file.length() + " bytes");
+            file.delete();
+            return uploadSize;
+        }
+
+// read the whole response.  Throws on an error status or the wrong size.
+        long finish(HttpURLConnection connection, long expected) throws IOException
+        {
+            int status = connection.getResponseCode();
+            InputStream in = status < 400 ? 
+                connection.getInputStream() : 
+                connection.getErrorStream();
+            long total = 0;
+            if(in != null)
+            {
+                while(true)
+                {
+                    int result = in.read(buffer);
+                    if(result < 0) break;
+                    total += result;
+                }
+                in.close();
+            }
+            if(status >= 400) throw new IOException("status " + status);
+            if(expected >= 0 && total != expected)
+                throw new IOException("got " + total + " bytes instead of " + expected);
+            return total;
+        }
+    }
+
+    static HttpURLConnection open(String url) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+        connection.setConnectTimeout(10000);
+        connection.setReadTimeout(60000);
+        return connection;
+    }
+
+
+// the directories to browse, the files to download & the upload directory
+    static void makeTree() throws IOException
+    {
+        root = File.createTempFile("webphone-load", "");
+        root.delete();
+        root.mkdir();
+
+        Random random = new Random(1);
+        for(int i = 0; i < dirs; i++)
+        {
+            File dir = new File(root, "browse/d" + i);
+            dir.mkdirs();
+            for(int j = 0; j < filesPerDir; j++)
+            {
+                String name;
+                switch(j % 4)
+                {
+                    case 0:
+                        name = String.format("IMG_2024%02d%02d_%06d.jpg", 
+                            random.nextInt(12) + 1, 
+                            random.nextInt(28) + 1, 
+                            j);
+                        break;
+                    case 1:
+                        name = "file" + j + ".txt";
+                        break;
+                    case 2:
+                        name = "Caf\u00e9 " + j + " \u5199\u771f.png";
+                        break;
+                    default:
+                        name = "a long name of a downloaded document number " + j + 
+                            " with some more words to make it wrap.pdf";
+                        break;
+                }
+                File file = new File(dir, name);
+                FileOutputStream out = new FileOutputStream(file);
+                out.write(new byte[random.nextInt(4096)]);
+                out.close();
+            }
+        }
+
+        File download = new File(root, "download");
+        download.mkdir();
+        byte[] buffer = new byte[1 << 20];
+        for(int i = 0; i < bigFiles; i++)
+        {
+            FileOutputStream out = new FileOutputStream(new File(download, "big" + i + ".bin"));
+            for(long written = 0; written < bigFileSize; written += buffer.length)
+            {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, (int)Math.min(buffer.length, bigFileSize - written));
+            }
+            out.close();
+        }
+
+        new File(root, "upload").mkdir();
+        new File(root, "home").mkdir();
+    }
+
+    static void deleteTree(File file)
+    {
+        File[] list = file.listFiles();
+        if(list != null)
+            for(int i = 0; i < list.length; i++) deleteTree(list[i]);
+        file.delete();
+    }
+
+// the server gets its own JVM & a home directory so the sort changes
+// don't go in the real ~/.webphonerc
+    static Process startServer() throws IOException
+    {
+        String java = System.getProperty("java.home") + "/bin/java";
+        ProcessBuilder builder = new ProcessBuilder(java,
+            "-Duser.home=" + new File(root, "home").getPath(),
+            "-cp", System.getProperty("java.class.path"),
+            "com.example.x.webphone.Stuff",
+            "-port", String.valueOf(port));
+        if(nio) builder.command().add("-nio");
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(new File(root, "home/server.log"));
+        Process process = builder.start();
+
+        for(int i = 0; i < 100; i++)
+        {
+            try
+            {
+                new Socket("127.0.0.1", port).close();
+                return process;
+            } catch(IOException e)
+            {
+            }
+            try
+            {
+                Thread.sleep(100);
+            } catch(InterruptedException e)
+            {
+            }
+        }
+        process.destroy();
+        throw new IOException("the server didn't start on port " + port);
+    }
+
+
+// run the workers for the warmup & the measured time.  Returns the totals.
+    static Stats[] runStep(int totalThreads) throws InterruptedException
+    {
+        measuring = false;
+        stopping = false;
+        Worker[] workers = new Worker[totalThreads];
+        for(int i = 0; i < totalThreads; i++)
+        {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
+        Thread.sleep(warmup * 1000L);
+        measuring = true;
+        Thread.sleep(seconds * 1000L);
+        measuring = false;
+        stopping = true;
+        for(int i = 0; i < totalThreads; i++) workers[i].join();
+
+        Stats[] total = { new Stats(), new Stats(), new Stats() };
+        for(int i = 0; i < totalThreads; i++)
+            for(int j = 0; j < total.length; j++)
+                total[j].merge(workers[i].stats[j]);
+        for(int j = 0; j < total.length; j++) total[j].sort();
+        return total;
+    }
+
+    static Properties results(Stats[] stats)
+    {
+        Properties result = new Properties();
+        for(int i = 0; i < stats.length; i++)
+        {
+            Stats s = stats[i];
+            if(s.count == 0 && s.errors == 0) continue;
+            String type = TYPES[i];
+            result.setProperty(type + ".requests_per_sec", format((double)s.count / seconds));
+            result.setProperty(type + ".mb_per_sec", format(s.bytes / 1048576.0 / seconds));
+            result.setProperty(type + ".p50_ms", format(s.percentile(0.5)));
+            result.setProperty(type + ".p99_ms", format(s.percentile(0.99)));
+            result.setProperty(type + ".p999_ms", format(s.percentile(0.999)));
+            result.setProperty(type + ".max_ms", format(s.percentile(1)));
+            result.setProperty(type + ".errors", String.valueOf(s.errors));
+        }
+        return result;
+    }
+
+    static String format(double x)
+    {
+        return String.format("%.2f", x);
+    }
+
+    static void print(Properties result, Properties baseline)
+    {
+        System.out.println(String.format("%-9s %10s %9s %9s %9s %9s %9s %7s",
+            "", "req/s", "MB/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "errors"));
+        String[] columns = { "requests_per_sec", "mb_per_sec", "p50_ms", "p99_ms", "p999_ms", "max_ms" };
+        for(int i = 0; i < TYPES.length; i++)
+        {
+            String type = TYPES[i];
+            if(result.getProperty(type + ".errors") == null) continue;
+            StringBuilder line = new StringBuilder(String.format("%-9s", type));
+            for(int j = 0; j < columns.length; j++)
+                line.append(String.format(" %9s", result.getProperty(type + "." + columns[j])));
+            line.append(String.format(" %7s", result.getProperty(type + ".errors")));
+            System.out.println(line);
+
+            if(baseline != null)
+            {
+                line = new StringBuilder(String.format("%-9s", "  change"));
+                for(int j = 0; j < columns.length; j++)
+                {
+                    String key = type + "." + columns[j];
+                    String old = baseline.getProperty(key);
+                    double oldValue = old == null ? 0 : Double.parseDouble(old);
+                    double newValue = Double.parseDouble(result.getProperty(key));
+                    if(oldValue == 0)
+                        line.append(String.format(" %9s", "-"));
+                    else
+                        line.append(String.format(" %8.1f%%", (newValue - oldValue) * 100 / oldValue));
+                }
+                line.append(String.format(" %7s", baseline.getProperty(type + ".errors", "-")));
+                System.out.println(line);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        for(int i = 0; i < args.length; i++)
+        {
+            String arg = args[i];
+            boolean hasValue = i + 1 < args.length;
+            if(arg.equals("-workload") && hasValue)
+                workload = args[++i];
+            else
+            if(arg.equals("-threads") && hasValue)
+                threads = Integer.parseInt(args[++i]);
+            else
+            if(arg.equals("-seconds") && hasValue)
+                seconds = Integer.parseInt(args[++i]);
+            else
+            if(arg.equals("-warmup") && hasValue)
+                warmup = Integer.parseInt(args[++i]);
+            else
+            if(arg.equals("-port") && hasValue)
+                port = Integer.parseInt(args[++i]);
+            else
+            if(arg.equals("-nio"))
+                nio = true;
+            else
+            if(arg.equals("-ramp"))
+                ramp = true;
+            else
+            if(arg.equals("-save") && hasValue)
+                savePath = args[++i];
+            else
+            if(arg.equals("-baseline") && hasValue)
+                baselinePath = args[++i];
+            else
+            {
+                System.out.println("LoadTest: unknown option " + arg);
+                System.exit(1);
+            }
+        }
+
+        Properties baseline = null;
+        if(baselinePath != null)
+        {
+            baseline = new Properties();
+            FileInputStream in = new FileInputStream(baselinePath);
+            baseline.load(in);
+            in.close();
+        }
+
+// keep a connection open for each worker
+        System.setProperty("http.maxConnections", String.valueOf(threads));
+        baseUrl = "http://127.0.0.1:" + port;
+
+        System.out.println("LoadTest: making the tree");
+        makeTree();
+        Process server = null;
+        try
+        {
+            server = startServer();
+            System.out.println("LoadTest: workload=" + workload +
+                " threads=" + threads +
+                " seconds=" + seconds +
+                " nio=" + nio +
+                " cores=" + Runtime.getRuntime().availableProcessors() +
+                " root=" + root);
+
+            if(ramp)
+            {
+                for(int n = 1; n <= threads; n *= 2)
+                {
+                    System.out.println("\nthreads=" + n);
+                    print(results(runStep(n)), null);
+                }
+            }
+            else
+            {
+                Properties result = results(runStep(threads));
+                print(result, baseline);
+                if(savePath != null)
+                {
+                    FileOutputStream out = new FileOutputStream(savePath);
+                    result.store(out, "LoadTest workload=" + workload +
+                        " threads=" + threads +
+                        " seconds=" + seconds +
+                        " nio=" + nio +
+                        " cores=" + Runtime.getRuntime().availableProcessors() +
+                        " java=" + System.getProperty("java.version"));
+                    out.close();
+                }
+            }
+        } finally
+        {
+            if(server != null) server.destroy();
+            deleteTree(root);
+        }
+    }
+}